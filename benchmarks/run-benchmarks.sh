@@ -0,0 +1,12 @@
+#!/bin/sh
+# Runs all benchmarks at 1 to 64 threads and stores the results as JSON in
+# results/<label>/, e.g.: ./run-benchmarks.sh 0.0.1-SNAPSHOT
+# Extra arguments are passed to JMH, e.g. a benchmark regexp.
+set -e
+LABEL=${1:-current}
+[ $# -gt 0 ] && shift
+mkdir -p "results/$LABEL"
+for THREADS in 1 2 4 8 16 32 64; do
+	java -jar target/benchmarks.jar -t "$THREADS" \
+		-rf json -rff "results/$LABEL/threads-$THREADS.json" "$@"
+done
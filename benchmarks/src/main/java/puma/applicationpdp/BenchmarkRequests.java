@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import oasis.names.tc.xacml._2_0.context.schema.os.RequestType;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import puma.peputils.Action;
+import puma.peputils.Environment;
+import puma.peputils.Object;
+import puma.peputils.Subject;
+import puma.peputils.attributes.EnvironmentAttributeValue;
+import puma.peputils.attributes.ObjectAttributeValue;
+import puma.peputils.attributes.SubjectAttributeValue;
+
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * Builds the requests used by the benchmarks: a subject and an object with a
+ * given number of attributes, each with a given number of values, on top of
+ * the attributes used by the benchmark policies.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class BenchmarkRequests {
+
+	private final Subject subject;
+
+	private final Object object;
+
+	private final Action action;
+
+	private final Environment environment;
+
+	public BenchmarkRequests(int attributeCount, int valuesPerAttribute) {
+		subject = new Subject("maarten");
+		subject.addAttributeValue(new SubjectAttributeValue("roles", "phd"));
+		subject.addAttributeValue(new SubjectAttributeValue("tenant", "1"));
+		for (int i = 0; i < attributeCount; i++) {
+			SubjectAttributeValue value = new SubjectAttributeValue(
+					"extra-" + i);
+			for (int j = 0; j < valuesPerAttribute; j++) {
+				value.addValue("subject-value-" + i + "-" + j);
+			}
+			subject.addAttributeValue(value);
+		}
+
+		object = new Object("123");
+		object.addAttributeValue(new ObjectAttributeValue("type", "document"));
+		object.addAttributeValue(new ObjectAttributeValue("owning-tenant", "1"));
+		for (int i = 0; i < attributeCount; i++) {
+			ObjectAttributeValue value = new ObjectAttributeValue("extra-" + i);
+			for (int j = 0; j < valuesPerAttribute; j++) {
+				value.addValue("object-value-" + i + "-" + j);
+			}
+			object.addAttributeValue(value);
+		}
+
+		action = new Action("read");
+
+		environment = new Environment();
+		environment.addAttributeValue(new EnvironmentAttributeValue(
+				"system-status", "normal"));
+	}
+
+	public Subject getSubject() {
+		return subject;
+	}
+
+	public Object getObject() {
+		return object;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public Environment getEnvironment() {
+		return environment;
+	}
+
+	/**
+	 * Returns the cached attributes of this request as built by the PEP.
+	 */
+	public List<CachedAttribute> asCachedAttributes() {
+		return ApplicationPEP.getInstance().asCachedAttributes(subject, object,
+				action, environment);
+	}
+
+	/**
+	 * Returns the XACML request of this request as built by the PEP.
+	 */
+	public RequestType asRequest() {
+		return ApplicationPEP.getInstance().asRequest(subject, object, action);
+	}
+
+	/**
+	 * Opens the given benchmark policy on the class path.
+	 */
+	public static InputStream openPolicy(String name) {
+		return BenchmarkRequests.class.getResourceAsStream("/benchmark-policies/"
+				+ name);
+	}
+
+	/**
+	 * Copies the given benchmark policy to a fresh directory as the
+	 * application policy and returns that directory (with trailing slash).
+	 */
+	public static String createPolicyDir(String name) throws IOException {
+		File dir = File.createTempFile("puma-benchmark", "");
+		dir.delete();
+		dir.mkdirs();
+		InputStream in = openPolicy(name);
+		try {
+			FileUtils.copyInputStreamToFile(in, new File(dir,
+					"application-policy.xml"));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return dir.getPath() + File.separator;
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import oasis.names.tc.xacml._2_0.context.schema.os.RequestType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * Benchmarks of the PEP stages: building the request, collecting the cached
+ * attributes and the end-to-end isAuthorized() on a local-only application
+ * policy (with the decision cache disabled, so that every call is evaluated).
+ *
+ * @author Maarten Decat
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dpuma.applicationpdp.cache.size=0",
+		"-Dpuma.applicationpdp.pool.min=0" })
+@State(Scope.Benchmark)
+public class PEPBenchmark {
+
+	@Param({ "4", "16", "64" })
+	public int attributeCount;
+
+	@Param({ "1", "8", "64" })
+	public int valuesPerAttribute;
+
+	private BenchmarkRequests requests;
+
+	private ApplicationPEP pep;
+
+	@Setup
+	public void setup() throws IOException {
+		requests = new BenchmarkRequests(attributeCount, valuesPerAttribute);
+		pep = ApplicationPEP.getInstance();
+		pep.initializePDP(BenchmarkRequests
+				.createPolicyDir("local-application-policy.xml"));
+	}
+
+	@Benchmark
+	public RequestType asRequest() {
+		return pep.asRequest(requests.getSubject(), requests.getObject(),
+				requests.getAction());
+	}
+
+	@Benchmark
+	public List<CachedAttribute> asCachedAttributes() {
+		return pep.asCachedAttributes(requests.getSubject(),
+				requests.getObject(), requests.getAction(),
+				requests.getEnvironment());
+	}
+
+	@Benchmark
+	public boolean isAuthorized() {
+		return pep.isAuthorized(requests.getSubject(), requests.getObject(),
+				requests.getAction(), requests.getEnvironment());
+	}
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import puma.applicationpdp.ApplicationPEP;
+import puma.applicationpdp.BenchmarkRequests;
+
+/**
+ * Load-test harness for the remote path: runs ApplicationPEP.isAuthorized()
+ * from many threads against a StandInCentralPDPServer and reports
+ * throughput, tail latency and failure behaviour for a series of scenarios
+ * (no faults, injected latency, latency spikes, dropped connections,
+ * TExceptions and slow accepts).
+ *
+ * The stand-in always answers Permit, so every false returned by
+ * isAuthorized() is a failure that was turned into the default deny.
+ *
+ * Usage: CentralPDPLoadTest [threads] [seconds per scenario]
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPDPLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		StandInCentralPDPServer server = new StandInCentralPDPServer(0);
+		// must be set before the PEP and its modules are loaded
+		System.setProperty("puma.applicationpdp.centralpdp.host", "localhost");
+		System.setProperty("puma.applicationpdp.centralpdp.port",
+				Integer.toString(server.getPort()));
+		System.setProperty("puma.applicationpdp.cache.size", "0");
+
+		ApplicationPEP pep = ApplicationPEP.getInstance();
+		pep.initializePDP(BenchmarkRequests
+				.createPolicyDir("remote-application-policy.xml"));
+		BenchmarkRequests request = new BenchmarkRequests(16, 4);
+
+		System.out.println(String.format(
+				"%-20s %10s %9s %9s %9s %9s %9s %9s", "scenario", "ops/s",
+				"p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)",
+				"denied"));
+
+		server.reset();
+		run("baseline", pep, request, threads, seconds);
+
+		server.reset();
+		server.setLatency(2, 3, 0, 0);
+		run("latency 2+exp(3)ms", pep, request, threads, seconds);
+
+		server.reset();
+		server.setLatency(1, 0, 0.01, 500);
+		run("1% spikes 500ms", pep, request, threads, seconds);
+
+		server.reset();
+		server.setDropProbability(0.01);
+		run("1% dropped", pep, request, threads, seconds);
+
+		server.reset();
+		server.setExceptionProbability(0.01);
+		run("1% TException", pep, request, threads, seconds);
+
+		server.reset();
+		server.setDropProbability(0.05);
+		server.setAcceptDelay(200);
+		run("5% dropped, slow acc", pep, request, threads, seconds);
+
+		System.out.println("stand-in server: " + server.getRequestCount()
+				+ " requests, " + server.getDropCount() + " dropped, "
+				+ server.getExceptionCount() + " exceptions");
+		server.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Helper function to run a single scenario and print its results.
+	 */
+	private static void run(String scenario, final ApplicationPEP pep,
+			final BenchmarkRequests request, int threads, int seconds)
+			throws InterruptedException {
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		final List<Worker> workers = new ArrayList<Worker>();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final Worker worker = new Worker();
+			workers.add(worker);
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < end) {
+						long start = System.nanoTime();
+						boolean authorized = pep.isAuthorized(
+								request.getSubject(), request.getObject(),
+								request.getAction(), request.getEnvironment());
+						worker.record(System.nanoTime() - start, authorized);
+					}
+					done.countDown();
+				}
+			}, "load-test-" + i);
+			t.start();
+		}
+		done.await();
+
+		long[] all = new long[0];
+		long denied = 0;
+		for (Worker worker : workers) {
+			long[] latencies = Arrays.copyOf(worker.latencies, worker.count);
+			long[] merged = Arrays.copyOf(all, all.length + latencies.length);
+			System.arraycopy(latencies, 0, merged, all.length,
+					latencies.length);
+			all = merged;
+			denied += worker.denied;
+		}
+		Arrays.sort(all);
+		System.out.println(String.format(
+				"%-20s %10.0f %9d %9d %9d %9d %9d %8.2f%%", scenario,
+				((double) all.length) / seconds, percentile(all, 0.5),
+				percentile(all, 0.9), percentile(all, 0.99),
+				percentile(all, 0.999), percentile(all, 1.0),
+				all.length == 0 ? 0.0 : 100.0 * denied / all.length));
+	}
+
+	/**
+	 * Returns the given percentile of the given sorted latencies, in
+	 * microseconds.
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+	}
+
+	/**
+	 * The measurements of a single load-test thread.
+	 */
+	private static class Worker {
+
+		private long[] latencies = new long[1024];
+
+		private int count = 0;
+
+		private long denied = 0;
+
+		private void record(long latency, boolean authorized) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[count++] = latency;
+			if (!authorized) {
+				denied++;
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransport;
+
+import puma.thrift.pdp.ResponseTypeP;
+
+/**
+ * In-process stand-in for the central PUMA PDP, for load and fault-injection
+ * testing of the remote path without deploying a real central PUMA PDP.
+ *
+ * The server speaks the same unframed TBinaryProtocol as
+ * CentralPUMAThriftPolicyEvaluatorModule and answers every evaluateP call
+ * with the configured decision. The request arguments are skipped, not
+ * interpreted. On top of that, it can inject:
+ * <ul>
+ * <li>latency: a fixed part, an exponentially distributed part and rare
+ * spikes</li>
+ * <li>dropped connections: the connection is closed instead of answering</li>
+ * <li>TExceptions: a TApplicationException is returned instead of a
+ * decision</li>
+ * <li>slow accepts: every new connection is accepted after a delay</li>
+ * </ul>
+ * All settings can be changed while the server is running.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class StandInCentralPDPServer {
+
+	private static final Logger logger = Logger
+			.getLogger(StandInCentralPDPServer.class.getName());
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService connectionExecutor;
+
+	private final Thread acceptor;
+
+	private final Random random = new Random();
+
+	private volatile boolean running = true;
+
+	private volatile ResponseTypeP decision = ResponseTypeP.PERMIT;
+
+	private volatile long fixedLatency = 0;
+
+	private volatile double meanExtraLatency = 0;
+
+	private volatile double spikeProbability = 0;
+
+	private volatile long spikeLatency = 0;
+
+	private volatile double dropProbability = 0;
+
+	private volatile double exceptionProbability = 0;
+
+	private volatile long acceptDelay = 0;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong drops = new AtomicLong();
+
+	private final AtomicLong exceptions = new AtomicLong();
+
+	/**
+	 * Starts a new stand-in server on the given port of the loopback
+	 * interface. Use port 0 for a free port, see getPort().
+	 */
+	public StandInCentralPDPServer(int port) throws IOException {
+		this.serverSocket = new ServerSocket(port, 1024,
+				InetAddress.getLoopbackAddress());
+		this.connectionExecutor = Executors
+				.newCachedThreadPool(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "stand-in-central-pdp-connection");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "stand-in-central-pdp-acceptor");
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void setDecision(ResponseTypeP decision) {
+		this.decision = decision;
+	}
+
+	/**
+	 * Sets the latency of every response: fixed + an exponentially
+	 * distributed part with the given mean + with the given probability a
+	 * spike of the given latency. All in milliseconds.
+	 */
+	public void setLatency(long fixed, double meanExtra,
+			double spikeProbability, long spike) {
+		this.fixedLatency = fixed;
+		this.meanExtraLatency = meanExtra;
+		this.spikeProbability = spikeProbability;
+		this.spikeLatency = spike;
+	}
+
+	/**
+	 * Sets the probability that a request is answered by closing the
+	 * connection.
+	 */
+	public void setDropProbability(double dropProbability) {
+		this.dropProbability = dropProbability;
+	}
+
+	/**
+	 * Sets the probability that a request is answered with a
+	 * TApplicationException.
+	 */
+	public void setExceptionProbability(double exceptionProbability) {
+		this.exceptionProbability = exceptionProbability;
+	}
+
+	/**
+	 * Sets the delay before every new connection is accepted, in
+	 * milliseconds.
+	 */
+	public void setAcceptDelay(long acceptDelay) {
+		this.acceptDelay = acceptDelay;
+	}
+
+	/**
+	 * Resets all injected faults and latency.
+	 */
+	public void reset() {
+		setLatency(0, 0, 0, 0);
+		setDropProbability(0);
+		setExceptionProbability(0);
+		setAcceptDelay(0);
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getDropCount() {
+		return drops.get();
+	}
+
+	public long getExceptionCount() {
+		return exceptions.get();
+	}
+
+	/**
+	 * Stops accepting connections and closes all open connections.
+	 */
+	public void close() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		connectionExecutor.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				sleep(acceptDelay);
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connectionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				if (running) {
+					logger.log(Level.WARNING, "Could not accept connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper function to answer all requests on the given connection.
+	 */
+	private void serve(Socket socket) {
+		TTransport transport = null;
+		try {
+			transport = new TIOStreamTransport(new BufferedInputStream(
+					socket.getInputStream()), new BufferedOutputStream(
+					socket.getOutputStream()));
+			TProtocol protocol = new TBinaryProtocol(transport);
+			while (running) {
+				TMessage message = protocol.readMessageBegin();
+				TProtocolUtil.skip(protocol, TType.STRUCT);
+				protocol.readMessageEnd();
+				requests.incrementAndGet();
+
+				sleep(nextLatency());
+				if (chance(dropProbability)) {
+					drops.incrementAndGet();
+					return;
+				}
+				if (chance(exceptionProbability)) {
+					exceptions.incrementAndGet();
+					protocol.writeMessageBegin(new TMessage(message.name,
+							TMessageType.EXCEPTION, message.seqid));
+					new TApplicationException(
+							TApplicationException.INTERNAL_ERROR,
+							"Injected failure").write(protocol);
+				} else {
+					protocol.writeMessageBegin(new TMessage(message.name,
+							TMessageType.REPLY, message.seqid));
+					protocol.writeStructBegin(new TStruct(message.name
+							+ "_result"));
+					protocol.writeFieldBegin(new TField("success", TType.I32,
+							(short) 0));
+					protocol.writeI32(decision.getValue());
+					protocol.writeFieldEnd();
+					protocol.writeFieldStop();
+					protocol.writeStructEnd();
+				}
+				protocol.writeMessageEnd();
+				transport.flush();
+			}
+		} catch (TException e) {
+			// the client closed the connection
+		} catch (IOException e) {
+			// idem
+		} finally {
+			if (transport != null) {
+				transport.close();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private long nextLatency() {
+		long latency = fixedLatency;
+		if (meanExtraLatency > 0) {
+			latency += (long) (-meanExtraLatency * Math.log(1 - nextDouble()));
+		}
+		if (chance(spikeProbability)) {
+			latency += spikeLatency;
+		}
+		return latency;
+	}
+
+	private boolean chance(double probability) {
+		return probability > 0 && nextDouble() < probability;
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
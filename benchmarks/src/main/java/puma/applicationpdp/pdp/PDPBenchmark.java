@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import oasis.names.tc.xacml._2_0.context.schema.os.RequestType;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import puma.applicationpdp.BenchmarkRequests;
+import puma.thrift.pdp.AttributeValueP;
+
+import com.sun.xacml.ctx.CachedAttribute;
+import com.sun.xacml.ctx.ResponseCtx;
+import com.sun.xacml.ctx.Result;
+
+/**
+ * Benchmarks of the PDP stages: converting the cached attributes to their
+ * Thrift representation and evaluating the application policy, which refers
+ * to the central PUMA policy, with an in-process stub for the central PUMA
+ * PDP.
+ *
+ * @author Maarten Decat
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dpuma.applicationpdp.pool.min=0" })
+@State(Scope.Benchmark)
+public class PDPBenchmark {
+
+	@Param({ "4", "16", "64" })
+	public int attributeCount;
+
+	@Param({ "1", "8", "64" })
+	public int valuesPerAttribute;
+
+	private List<CachedAttribute> cachedAttributes;
+
+	private RequestType request;
+
+	private ApplicationPDP pdp;
+
+	@Setup
+	public void setup() {
+		BenchmarkRequests requests = new BenchmarkRequests(attributeCount,
+				valuesPerAttribute);
+		cachedAttributes = requests.asCachedAttributes();
+		request = requests.asRequest();
+		InputStream policy = BenchmarkRequests
+				.openPolicy("remote-application-policy.xml");
+		try {
+			pdp = new ApplicationPDP(policy, false,
+					new StubRemotePolicyEvaluatorModule(Result.DECISION_PERMIT));
+		} finally {
+			IOUtils.closeQuietly(policy);
+		}
+	}
+
+	@Benchmark
+	public List<AttributeValueP> convertCachedAttributes() {
+		return CentralPUMAThriftPolicyEvaluatorModule
+				.convertCachedAttributes(cachedAttributes);
+	}
+
+	@Benchmark
+	public ResponseCtx evaluate() {
+		return pdp.evaluate(request, cachedAttributes);
+	}
+}
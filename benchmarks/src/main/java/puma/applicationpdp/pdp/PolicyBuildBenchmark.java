@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import puma.applicationpdp.BenchmarkRequests;
+
+import com.sun.xacml.ctx.Result;
+
+/**
+ * Benchmarks of building an ApplicationPDP: the first build in a fresh JVM
+ * (cold start, including class loading and without JIT-compiled code) from
+ * the XML of the policy and from its snapshot (restart with an unchanged
+ * policy, see PolicySnapshot), a rebuild in a warm JVM from the XML and from
+ * the snapshot (the compiled policies in memory are cleared first) and a
+ * rebuild from the compiled policy in the PolicyCache (reload of an
+ * unchanged policy).
+ *
+ * The snapshots are stored in the directory given by the system property
+ * puma.applicationpdp.benchmark.snapshots, target/policy-snapshots by
+ * default. The cold start from the snapshot has a warm-up fork, which writes
+ * the snapshot if it is not there yet.
+ *
+ * @author Maarten Decat
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dpuma.applicationpdp.pool.min=0" })
+@State(Scope.Benchmark)
+public class PolicyBuildBenchmark {
+
+	@Param({ "local-application-policy.xml", "remote-application-policy.xml" })
+	public String policyFile;
+
+	private byte[] policy;
+
+	private StubRemotePolicyEvaluatorModule centralPUMAPDPModule;
+
+	@Setup
+	public void setup() throws IOException {
+		InputStream in = BenchmarkRequests.openPolicy(policyFile);
+		try {
+			policy = IOUtils.toByteArray(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		centralPUMAPDPModule = new StubRemotePolicyEvaluatorModule(
+				Result.DECISION_PERMIT);
+	}
+
+	/**
+	 * Stores and looks up the compiled policies as snapshots.
+	 */
+	@State(Scope.Benchmark)
+	public static class Snapshots {
+
+		@Setup
+		public void setup() {
+			ApplicationPDP.setPolicySnapshotDirectory(new File(System
+					.getProperty("puma.applicationpdp.benchmark.snapshots",
+							"target/policy-snapshots")));
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(value = 20, jvmArgsAppend = { "-Dpuma.applicationpdp.pool.min=0" })
+	public ApplicationPDP coldStartFromXML() {
+		return build();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(value = 20, warmups = 1, jvmArgsAppend = { "-Dpuma.applicationpdp.pool.min=0" })
+	public ApplicationPDP coldStartFromSnapshot(Snapshots snapshots) {
+		return build();
+	}
+
+	@Benchmark
+	public ApplicationPDP rebuildFromXML() {
+		PolicyCache.getInstance().clear();
+		return build();
+	}
+
+	@Benchmark
+	public ApplicationPDP rebuildFromSnapshot(Snapshots snapshots) {
+		PolicyCache.getInstance().clear();
+		return build();
+	}
+
+	@Benchmark
+	public ApplicationPDP rebuildFromCache() {
+		return build();
+	}
+
+	private ApplicationPDP build() {
+		return new ApplicationPDP(new ByteArrayInputStream(policy), false,
+				centralPUMAPDPModule);
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.net.URI;
+
+import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.ctx.Result;
+import com.sun.xacml.remote.RemotePolicyEvaluatorModule;
+
+/**
+ * In-process stand-in for the central PUMA PDP module: converts the cached
+ * attributes like the Thrift module does, but returns a fixed decision
+ * instead of contacting the central PUMA PDP.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class StubRemotePolicyEvaluatorModule extends RemotePolicyEvaluatorModule {
+
+	private final int decision;
+
+	public StubRemotePolicyEvaluatorModule(int decision) {
+		this.decision = decision;
+	}
+
+	@Override
+	public boolean isRequestSupported() {
+		return false;
+	}
+
+	@Override
+	public boolean isIdReferenceSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean supportsId(URI id) {
+		return id.toString().equals("central-puma-policy");
+	}
+
+	@Override
+	public Result findAndEvaluate(EvaluationCtx context) {
+		return new Result(Result.DECISION_NOT_APPLICABLE);
+	}
+
+	@Override
+	public Result findAndEvaluate(URI id, EvaluationCtx context) {
+		CentralPUMAThriftPolicyEvaluatorModule.convertCachedAttributes(context
+				.getRawCachedAttributes());
+		return new Result(decision);
+	}
+}
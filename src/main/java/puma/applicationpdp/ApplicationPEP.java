@@ -19,6 +19,7 @@
  ******************************************************************************/
 package puma.applicationpdp;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -27,9 +28,29 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.rmi.RemoteException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,8 +63,17 @@ import oasis.names.tc.xacml._2_0.context.schema.os.ResourceType;
 import oasis.names.tc.xacml._2_0.context.schema.os.SubjectType;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import puma.applicationpdp.decisionlog.DecisionLog;
+import puma.applicationpdp.metrics.DecisionMetrics;
+import puma.applicationpdp.metrics.PrometheusEndpoint;
 import puma.applicationpdp.pdp.ApplicationPDP;
+import puma.applicationpdp.pdp.AttributeProjection;
+import puma.applicationpdp.pdp.CentralPUMAPDPCircuitBreaker;
+import puma.applicationpdp.pdp.CentralPUMAPolicyReplica;
+import puma.applicationpdp.pdp.Deadline;
+import puma.applicationpdp.pdp.EntityAttributeFinderModule;
 import puma.peputils.Action;
 import puma.peputils.Environment;
 import puma.peputils.Object;
@@ -52,12 +82,16 @@ import puma.peputils.Subject;
 import puma.rmi.pdp.mgmt.ApplicationPDPMgmtRemote;
 import puma.util.timing.TimerFactory;
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.attr.AttributeValue;
 import com.sun.xacml.attr.StringAttribute;
 import com.sun.xacml.ctx.CachedAttribute;
 import com.sun.xacml.ctx.ResponseCtx;
 import com.sun.xacml.ctx.Result;
+import com.sun.xacml.remote.RemotePolicyEvaluatorModule;
 
 /**
  * The main (only) class for accessing the Application PDP from the application.
@@ -83,6 +117,52 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 
 	private static final String APPLICATION_POLICY_FILENAME = "application-policy.xml";
 
+	/**
+	 * The directory (relative to the policy directory) with additional
+	 * application policies, each with its own id. These are evaluated next to
+	 * the application policy, see ApplicationPDP.
+	 */
+	private static final String ADDITIONAL_POLICIES_DIRNAME = "application-policies";
+
+	/**
+	 * The directory (relative to the policy directory) with a subdirectory
+	 * per tenant that has its own application policy. A tenant directory is
+	 * laid out like the policy directory: an application policy file and
+	 * optionally a directory with additional application policies.
+	 */
+	private static final String TENANTS_DIRNAME = "tenants";
+
+	/**
+	 * The directory (relative to the policy directory) with the binary
+	 * snapshots of the compiled policies, see
+	 * ApplicationPDP.setPolicySnapshotDirectory().
+	 */
+	private static final String POLICY_SNAPSHOTS_DIRNAME = "policy-snapshots";
+
+	/**
+	 * Whether to store snapshots of the compiled policies, so that a restart
+	 * does not parse the XML of unchanged policies.
+	 */
+	private static final boolean POLICY_SNAPSHOTS = Boolean.parseBoolean(System
+			.getProperty("puma.applicationpdp.policycache.snapshots", "true"));
+
+	private static final String CENTRAL_PUMA_POLICY_FILENAME = "central-puma-policy.xml";
+
+	private static final String CENTRAL_PUMA_POLICY_VERSION_FILENAME = "central-puma-policy.version";
+
+	/**
+	 * The version of a local copy of the central PUMA policy stored without
+	 * its version.
+	 */
+	private static final String UNKNOWN_CENTRAL_PUMA_POLICY_VERSION = "unknown";
+
+	/**
+	 * Whether to evaluate a local copy of the central PUMA policy instead of
+	 * contacting the central PUMA PDP whenever possible.
+	 */
+	private static final boolean CENTRAL_PUMA_POLICY_REPLICATION = Boolean
+			.getBoolean("puma.applicationpdp.centralpolicy.replicate");
+
 	private static final Logger logger = Logger.getLogger(ApplicationPEP.class
 			.getName());
 
@@ -103,19 +183,320 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 	 * CONSTRUCTOR
 	 ***********************/
 
-	private ApplicationPDP pdp;
+	private volatile ApplicationPDP pdp;
+
+	private String policyDir;
 
 	private String applicationPolicyFilename;
 
-	private String status;
+	/**
+	 * The version of the local copy of the central PUMA policy in use, null if
+	 * there is none.
+	 */
+	private volatile String centralPUMAPolicyVersion;
+
+	/**
+	 * The version of the central PUMA policy last announced with
+	 * loadCentralPUMAPolicy() or loadCentralPUMAPolicyAttributes(), null if
+	 * none was announced.
+	 */
+	private volatile String announcedCentralPUMAPolicyVersion;
+
+	/**
+	 * The attributes the central PUMA policy can reference as pushed with
+	 * loadCentralPUMAPolicyAttributes(), null if none were pushed.
+	 */
+	private AttributeProjection centralPUMAPolicyAttributes;
+
+	private volatile String status;
+
+	/**
+	 * Whether the synthetic warm-up workload is running, see initializePDP().
+	 */
+	private volatile boolean warmingUp = false;
 	
 	private Boolean remoteAccessIsEnabled;
 		
 	private static final String PEP_TIMER_NAME = "pep.isAuthorized";
+
+	private static final String PEP_BATCH_TIMER_NAME = "pep.isAuthorizedBatch";
+
+	/**
+	 * The request passed to the PDP, see asRequest().
+	 * 
+	 * NOTICE: this JAXB object graph is shared by all threads. That is safe
+	 * because it is safely published (static final), never modified after
+	 * buildRequestTemplate() and only read during evaluation. The JAXB
+	 * getters of list properties create the list on first access, which
+	 * would be a write, so buildRequestTemplate() touches every list
+	 * property once. See also DecisionPathTest.
+	 */
+	private static final RequestType REQUEST_TEMPLATE = buildRequestTemplate();
+
+	/**
+	 * Marker for a policy evaluation that did not result in a decision.
+	 */
+	private static final int DECISION_ERROR = -1;
+
+	/**
+	 * The maximal number of decisions in the decision cache. Set to 0 to
+	 * disable the decision cache.
+	 */
+	private static final int DECISION_CACHE_SIZE = Integer.getInteger(
+			"puma.applicationpdp.cache.size", 10000);
+
+	/**
+	 * The time to live of a cached decision, in milliseconds.
+	 */
+	private static final long DECISION_CACHE_TTL = Long.getLong(
+			"puma.applicationpdp.cache.ttl", 30000L);
+
+	private final DecisionCache decisionCache;
+
+	/**
+	 * The time after which an unused subject registration expires, in
+	 * milliseconds. See registerSubject().
+	 */
+	private static final long SESSION_TTL = Long.getLong(
+			"puma.applicationpdp.session.ttl", 30L * 60 * 1000);
+
+	private final SubjectSessions subjectSessions;
+
+	/**
+	 * The default time budget of a call to isAuthorized(), in milliseconds.
+	 * Remote evaluations still in flight when the budget runs out are cut off
+	 * and the fallback decision is used. Set to 0 for no budget.
+	 */
+	private static final long DEFAULT_DEADLINE = Long.getLong(
+			"puma.applicationpdp.deadline", 0L);
+
+	/**
+	 * The maximal number of threads used for evaluating requests given to
+	 * isAuthorizedAsync(). The call to the central PUMA PDP is a blocking
+	 * Thrift call, so a request holds its thread while it waits for the
+	 * central PUMA PDP: this caps the number of asynchronous requests that
+	 * are evaluated, and wait for the central PUMA PDP, concurrently. Idle
+	 * threads are stopped after a while.
+	 */
+	private static final int ASYNC_THREADS = Integer.getInteger(
+			"puma.applicationpdp.async.threads", 256);
+
+	/**
+	 * The maximal number of requests given to isAuthorizedAsync() that wait
+	 * for a thread. When this many requests are waiting, new requests are
+	 * rejected: their future fails with a RejectedExecutionException, so
+	 * that callers notice the PDP is overloaded instead of queueing without
+	 * bound.
+	 */
+	private static final int ASYNC_QUEUE = Integer.getInteger(
+			"puma.applicationpdp.async.queue", 4096);
+
+	/**
+	 * The maximal number of requests of a single isAuthorizedBatch() call
+	 * that are evaluated at the same time, including the calling thread.
+	 */
+	private static final int BATCH_PARALLELISM = Math.max(1, Integer.getInteger(
+			"puma.applicationpdp.batch.parallelism", 8));
+
+	private static final String ASYNC_REJECTED_COUNTER_NAME = "pep.async.rejected";
+
+	private final ExecutorService evaluationExecutor;
+
+	/**
+	 * Whether every decision is logged to the decision log, the directory of
+	 * the log file (the temporary directory by default), the file to which
+	 * the decisions are logged (in that directory by default), the number of
+	 * decisions that can be buffered before they are dropped, the size in
+	 * bytes after which the file is rolled over and the number of rolled over
+	 * files to keep.
+	 */
+	private static final boolean DECISION_LOG_ENABLED = Boolean
+			.parseBoolean(System.getProperty(
+					"puma.applicationpdp.decisionlog.enabled", "true"));
+
+	private static final String DECISION_LOG_DIR = System.getProperty(
+			"puma.applicationpdp.decisionlog.dir",
+			System.getProperty("java.io.tmpdir"));
+
+	private static final String DECISION_LOG_FILE = System.getProperty(
+			"puma.applicationpdp.decisionlog.file",
+			new File(DECISION_LOG_DIR, "puma-application-pdp-decisions.log")
+					.getPath());
+
+	private static final int DECISION_LOG_CAPACITY = Integer.getInteger(
+			"puma.applicationpdp.decisionlog.capacity", 65536);
+
+	private static final long DECISION_LOG_MAX_FILE_SIZE = Long.getLong(
+			"puma.applicationpdp.decisionlog.maxfilesize", 64L * 1024 * 1024);
+
+	private static final int DECISION_LOG_MAX_FILES = Integer.getInteger(
+			"puma.applicationpdp.decisionlog.maxfiles", 5);
+
+	/**
+	 * Null if the decision log is disabled.
+	 */
+	private final DecisionLog decisionLog;
+
+	/**
+	 * Incremented every time a new PDP is put in use.
+	 */
+	private final AtomicInteger policyVersion = new AtomicInteger();
+
+	/**
+	 * The single thread on which new PDPs are built when reloading, so that
+	 * reloads never run on a request thread and never run concurrently.
+	 */
+	private final ExecutorService reloadExecutor;
+
+	/**
+	 * Whether to report the metrics over JMX.
+	 */
+	private static final boolean METRICS_JMX = Boolean.parseBoolean(System
+			.getProperty("puma.applicationpdp.metrics.jmx", "true"));
+
+	/**
+	 * The port and host on which the metrics are served in the Prometheus
+	 * text format. Set the port to 0 to disable the endpoint.
+	 */
+	private static final int METRICS_PORT = Integer.getInteger(
+			"puma.applicationpdp.metrics.port", 0);
+
+	private static final String METRICS_HOST = System
+			.getProperty("puma.applicationpdp.metrics.host");
+
+	private final DecisionMetrics decisionMetrics;
+
+	/**
+	 * The reporters of the metrics, null if disabled. Stopped by
+	 * stopMetrics().
+	 */
+	private JmxReporter jmxReporter;
+
+	private PrometheusEndpoint metricsEndpoint;
+
+	/**
+	 * The id of the attribute that holds the tenant of the subject.
+	 */
+	private static final String TENANT_ATTRIBUTE = System.getProperty(
+			"puma.applicationpdp.tenants.attribute", "subject:tenant");
+
+	/**
+	 * The maximal total size in bytes of the policies of the tenants of which
+	 * the PDP is kept in memory, the maximal number of such tenants and the
+	 * number of threads on which the PDPs of tenants are built.
+	 */
+	private static final long TENANTS_MAX_BYTES = Long.getLong(
+			"puma.applicationpdp.tenants.maxbytes", 16L * 1024 * 1024);
+
+	private static final int TENANTS_MAX_COUNT = Integer.getInteger(
+			"puma.applicationpdp.tenants.maxcount", 1000);
+
+	private static final int TENANTS_LOADER_THREADS = Integer.getInteger(
+			"puma.applicationpdp.tenants.loaders", 4);
+
+	/**
+	 * The PDPs of the tenants with their own application policy, null if the
+	 * policy directory has no tenants directory.
+	 */
+	private volatile TenantPDPs tenantPDPs;
+
+	/**
+	 * Whether initializePDP() builds the PDP in the background, so that the
+	 * connections to the central PUMA PDP and the database are set up
+	 * without blocking the caller.
+	 */
+	private static final boolean STARTUP_BACKGROUND = Boolean
+			.getBoolean("puma.applicationpdp.startup.background");
+
+	/**
+	 * The synthetic warm-up workload run by initializePDP(), see WarmUp: the
+	 * maximal number of requests (0 to disable the warm-up), the maximal
+	 * duration in milliseconds, the number of requests per round, the
+	 * relative difference in median latency between rounds below which the
+	 * latency is considered settled.
+	 */
+	private static final int WARMUP_REQUESTS = Integer.getInteger(
+			"puma.applicationpdp.warmup.requests", 0);
+
+	private static final long WARMUP_MAX_TIME = Long.getLong(
+			"puma.applicationpdp.warmup.maxtime", 30000L);
+
+	private static final int WARMUP_ROUND_SIZE = Integer.getInteger(
+			"puma.applicationpdp.warmup.round", 200);
+
+	private static final double WARMUP_TOLERANCE = Double.parseDouble(System
+			.getProperty("puma.applicationpdp.warmup.tolerance", "0.1"));
 	
 	private ApplicationPEP() {
-		// initialize the timer
+		// initialize the decision cache
+		this.decisionCache = new DecisionCache(DECISION_CACHE_SIZE,
+				DECISION_CACHE_TTL);
+		// initialize the subject registrations
+		this.subjectSessions = new SubjectSessions(SESSION_TTL);
+		// initialize the executor for asynchronous requests
+		ThreadPoolExecutor evaluationExecutor = new ThreadPoolExecutor(
+				ASYNC_THREADS, ASYNC_THREADS, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE),
+				new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "application-pdp-evaluator-"
+								+ counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		evaluationExecutor.allowCoreThreadTimeOut(true);
+		this.evaluationExecutor = evaluationExecutor;
+		// initialize the decision log
+		if (DECISION_LOG_ENABLED) {
+			this.decisionLog = new DecisionLog(new File(DECISION_LOG_FILE),
+					DECISION_LOG_CAPACITY, DECISION_LOG_MAX_FILE_SIZE,
+					DECISION_LOG_MAX_FILES);
+		} else {
+			this.decisionLog = null;
+		}
+		// initialize the executor for reloads
+		this.reloadExecutor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "application-pdp-reloader");
+						t.setDaemon(true);
+						return t;
+					}
+				});
 		
+		// initialize the metrics surface
+		this.decisionMetrics = DecisionMetrics.getInstance();
+		this.decisionMetrics.publishMetrics(Collections.<String> emptyList());
+		if (METRICS_JMX) {
+			this.jmxReporter = JmxReporter
+					.forRegistry(
+							TimerFactory.getInstance().getMetricRegistry())
+					.inDomain("puma.applicationpdp").build();
+			this.jmxReporter.start();
+		}
+		if (METRICS_PORT > 0) {
+			try {
+				this.metricsEndpoint = new PrometheusEndpoint(METRICS_HOST,
+						METRICS_PORT);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Could not start the metrics endpoint on port "
+						+ METRICS_PORT, e);
+			}
+		}
+		if (this.jmxReporter != null || this.metricsEndpoint != null) {
+			Runtime.getRuntime().addShutdownHook(
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							stopMetrics();
+						}
+					}, "application-pdp-metrics-shutdown"));
+		}
 		
 		// NOTICE: the PDP should be initialized using initializePDP(dir)
 		// before the first call to isAuthorized()
@@ -130,26 +511,83 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 	 * 
 	 * This method should be called before the first call to isAuthorized().
 	 * 
+	 * If background startup is enabled, the PDP is built in the background
+	 * and this method returns immediately. Requests received before the PDP
+	 * is built are denied. If a warm-up workload is configured, it is run
+	 * through the PDP once it is built, see decideSynthetic(). getStatus()
+	 * only reports OK when both are done.
+	 * 
 	 * @param policyDir
 	 *            WITH trailing slash.
 	 */
 	public void initializePDP(String policyDir) {
 		// store for later usage
+		this.policyDir = policyDir;
 		this.applicationPolicyFilename = policyDir
 				+ APPLICATION_POLICY_FILENAME;
+		this.warmingUp = WARMUP_REQUESTS > 0;
+		if (POLICY_SNAPSHOTS) {
+			ApplicationPDP.setPolicySnapshotDirectory(new File(policyDir
+					+ POLICY_SNAPSHOTS_DIRNAME));
+		}
 
-		InputStream applicationPolicyStream;
-		try {
-			applicationPolicyStream = new FileInputStream(
-					applicationPolicyFilename);
-		} catch (FileNotFoundException e) {
-			logger.log(Level.SEVERE, "Application policy file not found", e);
-			status = "APPLICATION POLICY FILE NOT FOUND";
-			return;
+		if (STARTUP_BACKGROUND) {
+			status = "INITIALIZING";
+			reloadExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					initialize();
+				}
+			});
+		} else {
+			initialize();
+		}
+	}
+
+	/**
+	 * Helper function to build the PDPs and warm them up, see initializePDP().
+	 */
+	private void initialize() {
+		initializeTenantPDPs();
+		if (buildAndSwapPDP(null, this.remoteAccessIsEnabled)) {
+			logger.info("initialized application PDP");
+			if (warmingUp) {
+				try {
+					new WarmUp(this, WARMUP_REQUESTS, WARMUP_MAX_TIME,
+							WARMUP_ROUND_SIZE, WARMUP_TOLERANCE)
+							.run(this.pdp.getIndexedValues());
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Warm-up failed", e);
+				}
+			}
+		}
+		warmingUp = false;
+	}
+
+	/**
+	 * Helper function to set up the PDPs of the tenants, if the policy
+	 * directory has a tenants directory.
+	 */
+	private void initializeTenantPDPs() {
+		if (new File(policyDir + TENANTS_DIRNAME).isDirectory()) {
+			this.tenantPDPs = new TenantPDPs(new TenantPDPs.Loader() {
+				@Override
+				public long getPolicySize(String tenant) {
+					return getTenantPolicySize(tenant);
+				}
+
+				@Override
+				public ApplicationPDP load(String tenant) {
+					return buildTenantPDP(tenant);
+				}
+
+				@Override
+				public void loaded(String tenant) {
+					decisionCache.invalidateAll();
+				}
+			}, TENANTS_MAX_BYTES, TENANTS_MAX_COUNT, TENANTS_LOADER_THREADS);
+			logger.info("initialized tenant PDPs");
 		}
-		this.pdp = new ApplicationPDP(applicationPolicyStream, this.remoteAccessIsEnabled);
-		logger.info("initialized application PDP");
-		status = "OK";
 	}
 
 	/***********************
@@ -175,62 +613,465 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 	 */
 	public boolean isAuthorized(Subject subject, Object object, Action action,
 			Environment environment) {
+		return isAuthorized(subject, object, action, environment,
+				DEFAULT_DEADLINE);
+	}
+
+	/**
+	 * Variant of isAuthorized() with a time budget: if the central PUMA PDP
+	 * has not answered within the given number of milliseconds, the remote
+	 * call is cut off and its fallback decision is used.
+	 * 
+	 * @param timeout
+	 *            The budget in milliseconds, 0 for no budget.
+	 */
+	public boolean isAuthorized(Subject subject, Object object, Action action,
+			Environment environment, long timeout) {
 		Timer.Context timerCtx = TimerFactory.getInstance().getTimer(getClass(), PEP_TIMER_NAME).time();
-		boolean result = _isAuthorized(subject, object, action, environment);
+		boolean result = _isAuthorized(subject, subject.asCachedAttributes(),
+				object, action, environment, Deadline.after(timeout));
 		timerCtx.stop();
 		return result;
 	}
+
+	/**
+	 * Variant of isAuthorized() for a subject registered with
+	 * registerSubject(): the cached attributes of the subject are reused
+	 * instead of being built again. If the session is no longer valid, the
+	 * attributes of the given subject are used. If the session is not a
+	 * session of the given subject, the request is denied.
+	 * 
+	 * @param session
+	 * @param subject
+	 *            The subject of the session.
+	 * @param object
+	 * @param action
+	 * @param environment
+	 * @return
+	 */
+	public boolean isAuthorized(SubjectSession session, Subject subject,
+			Object object, Action action, Environment environment) {
+		Timer.Context timerCtx = TimerFactory.getInstance().getTimer(getClass(), PEP_TIMER_NAME).time();
+		long start = System.nanoTime();
+		boolean result;
+		if (!session.getSubjectId().equals(subject.getId())) {
+			// never evaluate the attributes of one subject for another one
+			logger.severe("Denying " + getIds(subject, object, action)
+					+ ": the given session " + session
+					+ " is not a session of the subject");
+			result = toBoolean(DECISION_ERROR, subject, object, action, start);
+		} else {
+			result = _isAuthorized(subject,
+					subjectSessions.getAttributes(session, subject), object,
+					action, environment, Deadline.after(DEFAULT_DEADLINE));
+		}
+		timerCtx.stop();
+		return result;
+	}
+
+	/**
+	 * Registers the attributes of the given subject for the rest of its
+	 * session, so that they are not built again on every call to
+	 * isAuthorized(). Register the subject again when its attributes change:
+	 * earlier sessions of the same subject then become invalid.
+	 */
+	public SubjectSession registerSubject(Subject subject) {
+		return subjectSessions.register(subject);
+	}
+
+	/**
+	 * Releases the given session, for example when the user logs out.
+	 */
+	public void releaseSubject(SubjectSession session) {
+		subjectSessions.release(session);
+	}
+
+	/**
+	 * Asynchronous variant of isAuthorized(): the request is evaluated on a
+	 * dedicated executor and the returned future completes with the same
+	 * value isAuthorized() would have returned. The caller thread is not
+	 * blocked, not even for the local evaluation.
+	 * 
+	 * NOTICE: this only moves the evaluation off the caller thread. The
+	 * evaluation itself, including the call to the central PUMA PDP, still
+	 * blocks a thread of the executor until it is done (the XACML evaluation
+	 * of the policies cannot be suspended while waiting for the central PUMA
+	 * PDP). Hence, at most puma.applicationpdp.async.threads requests are
+	 * evaluated concurrently, and up to puma.applicationpdp.async.queue more
+	 * wait for a thread.
+	 * 
+	 * The time between calling this method and completing the future is
+	 * recorded in the same timer as isAuthorized().
+	 * 
+	 * If too many requests are waiting to be evaluated already, the returned
+	 * future fails with a RejectedExecutionException.
+	 * 
+	 * @param subject
+	 * @param object
+	 * @param action
+	 * @param environment
+	 * @return
+	 */
+	public CompletableFuture<Boolean> isAuthorizedAsync(final Subject subject,
+			final Object object, final Action action,
+			final Environment environment) {
+		final Timer.Context timerCtx = TimerFactory.getInstance()
+				.getTimer(getClass(), PEP_TIMER_NAME).time();
+		final long deadline = Deadline.after(DEFAULT_DEADLINE);
+		CompletableFuture<Boolean> result;
+		try {
+			result = CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					return _isAuthorized(subject, subject.asCachedAttributes(),
+							object, action, environment, deadline);
+				}
+			}, evaluationExecutor);
+		} catch (RejectedExecutionException e) {
+			TimerFactory.getInstance().getMetricRegistry()
+					.counter(MetricRegistry.name(getClass(),
+							ASYNC_REJECTED_COUNTER_NAME)).inc();
+			result = new CompletableFuture<Boolean>();
+			result.completeExceptionally(e);
+		}
+		result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+			@Override
+			public void accept(Boolean authorized, Throwable t) {
+				timerCtx.stop();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Returns for each of the given requests whether it is authorized, in the
+	 * same order as the given requests.
+	 * 
+	 * Identical requests are only evaluated once and the distinct requests are
+	 * evaluated in parallel, so that their remote evaluations by the central
+	 * PUMA PDP are in flight at the same time instead of one after the other.
+	 * At most BATCH_PARALLELISM requests of a batch are evaluated at the same
+	 * time, so that a large batch does not take all connections to the
+	 * central PUMA PDP. This method can safely be called from a thread that
+	 * evaluates an asynchronous request.
+	 * 
+	 * @param requests
+	 * @return
+	 */
+	public List<Boolean> isAuthorizedBatch(List<AuthorizationRequest> requests) {
+		Timer.Context timerCtx = TimerFactory.getInstance()
+				.getTimer(getClass(), PEP_BATCH_TIMER_NAME).time();
+		long start = System.nanoTime();
+		final long deadline = Deadline.after(DEFAULT_DEADLINE);
+		try {
+			// 1. dedupe the requests based on their attributes
+			Map<String, Integer> indexOfKey = new HashMap<String, Integer>();
+			final List<AuthorizationRequest> distinctRequests = new ArrayList<AuthorizationRequest>();
+			final List<List<CachedAttribute>> distinctAttributes = new ArrayList<List<CachedAttribute>>();
+			final List<String> distinctKeys = new ArrayList<String>();
+			int[] indexOfRequest = new int[requests.size()];
+			for (int i = 0; i < requests.size(); i++) {
+				AuthorizationRequest request = requests.get(i);
+				List<CachedAttribute> attributes = asCachedAttributes(
+						request.getSubject(), request.getObject(),
+						request.getAction(), request.getEnvironment());
+				String key = DecisionCache.fingerprint(attributes);
+				Integer index = indexOfKey.get(key);
+				if (index == null) {
+					index = distinctRequests.size();
+					indexOfKey.put(key, index);
+					distinctRequests.add(request);
+					distinctAttributes.add(attributes);
+					distinctKeys.add(key);
+				}
+				indexOfRequest[i] = index;
+			}
+			// 2. evaluate the distinct requests in parallel: this thread and
+			// at most BATCH_PARALLELISM - 1 helpers on the evaluation executor
+			// take the next unevaluated request until all are done
+			final int n = distinctRequests.size();
+			final int[] decisions = new int[n];
+			final AtomicInteger next = new AtomicInteger();
+			final CountDownLatch done = new CountDownLatch(n);
+			Runnable worker = new Runnable() {
+				@Override
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < n) {
+						AuthorizationRequest request = distinctRequests.get(i);
+						try {
+							decisions[i] = decide(request.getSubject(),
+									request.getObject(), request.getAction(),
+									distinctAttributes.get(i),
+									distinctKeys.get(i), deadline);
+						} catch (RuntimeException e) {
+							logger.log(Level.SEVERE,
+									"An error occured in the policy evaluation for "
+											+ getIds(request.getSubject(),
+													request.getObject(),
+													request.getAction()), e);
+							decisions[i] = DECISION_ERROR;
+						} finally {
+							done.countDown();
+						}
+					}
+				}
+			};
+			int helpers = Math.min(BATCH_PARALLELISM, n) - 1;
+			for (int i = 0; i < helpers; i++) {
+				try {
+					evaluationExecutor.execute(worker);
+				} catch (RejectedExecutionException e) {
+					// the executor is saturated, do the rest ourselves
+					break;
+				}
+			}
+			worker.run();
+			// only wait for the requests helpers are evaluating right now,
+			// never for helpers that are still queued: this thread can be a
+			// thread of the executor itself
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Interrupted while waiting for the batch", e);
+			}
+			// 3. map the decisions back onto the given requests
+			List<Boolean> result = new ArrayList<Boolean>(requests.size());
+			for (int i = 0; i < requests.size(); i++) {
+				AuthorizationRequest request = requests.get(i);
+				result.add(toBoolean(decisions[indexOfRequest[i]],
+						request.getSubject(), request.getObject(),
+						request.getAction(), start));
+			}
+			return result;
+		} finally {
+			timerCtx.stop();
+		}
+	}
+
 	/**
 	 * This is the real isAuthorized(). It is just separate to wrap it 
 	 * in timer code.
 	 * @param subject
+	 * @param subjectAttributes
+	 *            The cached attributes of the subject.
 	 * @param object
 	 * @param action
 	 * @param environment
+	 * @param deadline
 	 * @return
 	 */
-	private boolean _isAuthorized(Subject subject, Object object, Action action,
-			Environment environment) {
+	private boolean _isAuthorized(Subject subject,
+			Collection<CachedAttribute> subjectAttributes, Object object,
+			Action action, Environment environment, long deadline) {
+		long start = System.nanoTime();
 		// build a request containing the ids of the subject, object and action
 		// AND put ALL attributes
 		// already in the cache
+		List<CachedAttribute> asCachedAttributes = asCachedAttributes(
+				subjectAttributes, object, action, environment);
+		String cacheKey = null;
+		if (decisionCache.isEnabled()) {
+			cacheKey = DecisionCache.fingerprint(asCachedAttributes);
+		}
+		int decision = decide(subject, object, action, asCachedAttributes,
+				cacheKey, deadline);
+		return toBoolean(decision, subject, object, action, start);
+	}
+
+	/**
+	 * Helper function to reach a decision for the given attributes, either
+	 * from the decision cache or from the PDP. Returns DECISION_ERROR if the
+	 * PDP could not reach a decision.
+	 * 
+	 * @param cacheKey
+	 *            The fingerprint of the given attributes or null if it was not
+	 *            computed because the decision cache is disabled.
+	 * @param deadline
+	 *            The deadline for remote evaluations, see Deadline.
+	 */
+	private int decide(Subject subject, Object object, Action action,
+			List<CachedAttribute> asCachedAttributes, String cacheKey,
+			long deadline) {
+		// first check whether we already know the decision
+		long cacheGeneration = 0;
+		if (cacheKey != null && decisionCache.isEnabled()) {
+			Integer cached = decisionCache.get(cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+			cacheGeneration = decisionCache.currentGeneration();
+		} else {
+			cacheKey = null;
+		}
 		RequestType asRequest = asRequest(subject, object, action);
-		List<CachedAttribute> asCachedAttributes = asCachedAttributes(subject,
-				object, action, environment);
-		ResponseCtx response = pdp.evaluate(asRequest, asCachedAttributes);
+		ApplicationPDP currentPDP = this.pdp;
+		if (currentPDP == null) {
+			logger.severe("No PDP to evaluate " + getIds(subject, object, action)
+					+ ": the PDP is not initialized (yet)");
+			return DECISION_ERROR;
+		}
+		Timer.Context tenantTimerCtx = null;
+		TenantPDPs.Tenant tenant;
+		try {
+			tenant = getTenant(asCachedAttributes, deadline);
+		} catch (TimeoutException e) {
+			logger.severe("No PDP to evaluate " + getIds(subject, object, action)
+					+ ": the PDP of the tenant of the subject was not loaded in time");
+			return DECISION_ERROR;
+		}
+		if (tenant != null && tenant.getPDP() != null) {
+			currentPDP = tenant.getPDP();
+			tenantTimerCtx = tenant.getLatency().time();
+		}
+		long fallbacks = currentPDP.getFallbackCount();
+		ResponseCtx response;
+		try {
+			response = currentPDP.evaluate(asRequest, asCachedAttributes,
+					deadline);
+		} finally {
+			if (tenantTimerCtx != null) {
+				tenantTimerCtx.stop();
+			}
+		}
 		if (!getStatus(response).equals("ok")) {
 			logger.severe("An error occured in the policy evaluation for "
 					+ getIds(subject, object, action) + ". Status was: "
 					+ getStatus(response));
+			return DECISION_ERROR;
+		}
+		int decision = getDecision(response);
+		// do not cache fallback decisions: the central PUMA PDP could not be
+		// reached (by this or a concurrent request)
+		if (cacheKey != null && currentPDP.getFallbackCount() == fallbacks) {
+			decisionCache.put(cacheKey, decision, cacheGeneration);
+		}
+		return decision;
+	}
+
+	/**
+	 * Helper function to find the tenant of the subject in the given
+	 * attributes, loading it if needed. Returns null if there are no tenant
+	 * PDPs, if the subject has no tenant or if the tenant has no application
+	 * policy of its own.
+	 * 
+	 * @throws TimeoutException
+	 *             If the tenant could not be loaded before the deadline.
+	 */
+	@SuppressWarnings("unchecked")
+	private TenantPDPs.Tenant getTenant(List<CachedAttribute> asCachedAttributes,
+			long deadline) throws TimeoutException {
+		TenantPDPs currentTenantPDPs = this.tenantPDPs;
+		if (currentTenantPDPs == null) {
+			return null;
+		}
+		for (CachedAttribute ca : asCachedAttributes) {
+			if (TENANT_ATTRIBUTE.equals(ca.getId())) {
+				Collection<AttributeValue> values = (Collection<AttributeValue>) ca
+						.getValue().getValue();
+				if (values.isEmpty()) {
+					return null;
+				}
+				return currentTenantPDPs.get(values.iterator().next().encode(),
+						deadline);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to evaluate a synthetic request, for example of the
+	 * warm-up workload, on the default PDP. The request is not routed to the
+	 * PDP of a tenant and has no effects outside the PDP: the decision cache,
+	 * the decision log and the decision metrics are bypassed, and neither the
+	 * entity database nor the central PUMA PDP is contacted (see
+	 * ApplicationPDP.evaluateSynthetic()). Returns DECISION_ERROR if the PDP
+	 * could not reach a decision.
+	 */
+	int decideSynthetic(Subject subject, Object object, Action action,
+			Environment environment) {
+		ApplicationPDP currentPDP = this.pdp;
+		if (currentPDP == null) {
+			return DECISION_ERROR;
+		}
+		ResponseCtx response = currentPDP.evaluateSynthetic(
+				asRequest(subject, object, action),
+				asCachedAttributes(subject, object, action, environment));
+		if (response == null || !getStatus(response).equals("ok")) {
+			return DECISION_ERROR;
+		}
+		return getDecision(response);
+	}
+
+	/**
+	 * Helper function to translate the given decision into the result of
+	 * isAuthorized(): return true if the decision was Permit, return false in
+	 * any other case. Every decision is also written to the decision log,
+	 * if it is enabled.
+	 * 
+	 * @param start
+	 *            The value of System.nanoTime() when the request was received.
+	 */
+	private boolean toBoolean(int decision, Subject subject, Object object,
+			Action action, long start) {
+		long latency = System.nanoTime() - start;
+		if (decisionLog != null) {
+			decisionLog.log(latency, policyVersion.get(), decision,
+					subject.getId(), object.getId(), action.getId());
+		}
+		decisionMetrics.recordDecision(getOutcome(decision), latency);
+		switch (decision) {
+		case DECISION_ERROR:
+			// already logged
 			return false;
-		} else {
-			// return true if the decision was Permit, return false in any other
-			// case
-			int decision = getDecision(response);
-			switch (decision) {
-			case Result.DECISION_PERMIT:
-				logger.info("Authorization decision for "
+		case Result.DECISION_PERMIT:
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Authorization decision for "
 						+ getIds(subject, object, action) + " was Permit");
-				return true;
-			case Result.DECISION_INDETERMINATE:
-				logger.warning("Authorization decision for "
-						+ getIds(subject, object, action)
-						+ " was Indeterminate");
-				return false;
-			case Result.DECISION_NOT_APPLICABLE:
-				logger.info("Authorization decision for "
+			}
+			return true;
+		case Result.DECISION_INDETERMINATE:
+			logger.warning("Authorization decision for "
+					+ getIds(subject, object, action) + " was Indeterminate");
+			return false;
+		case Result.DECISION_NOT_APPLICABLE:
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Authorization decision for "
 						+ getIds(subject, object, action)
 						+ " was Not Applicable");
-				return false;
-			case Result.DECISION_DENY:
-				logger.info("Authorization decision for "
+			}
+			return false;
+		case Result.DECISION_DENY:
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Authorization decision for "
 						+ getIds(subject, object, action) + " was Deny");
-				return false;
-			default:
-				logger.severe("An unknown result was returned by the PDP: "
-						+ decision);
-				return false;
 			}
+			return false;
+		default:
+			logger.severe("An unknown result was returned by the PDP: "
+					+ decision);
+			return false;
+		}
+	}
+
+	/**
+	 * Helper function to translate the given decision into an outcome of
+	 * DecisionMetrics.
+	 */
+	private static int getOutcome(int decision) {
+		switch (decision) {
+		case Result.DECISION_PERMIT:
+			return DecisionMetrics.PERMIT;
+		case Result.DECISION_DENY:
+			return DecisionMetrics.DENY;
+		case Result.DECISION_NOT_APPLICABLE:
+			return DecisionMetrics.NOT_APPLICABLE;
+		case Result.DECISION_INDETERMINATE:
+			return DecisionMetrics.INDETERMINATE;
+		default:
+			return DecisionMetrics.ERROR;
 		}
 	}
 
@@ -249,24 +1090,57 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 
 	/**
 	 * Helper function to retrieve the attributes of the given subject, object,
-	 * action and environment as cached attributes.
+	 * action and environment as cached attributes. Package-visible for the
+	 * benchmarks.
 	 */
-	private List<CachedAttribute> asCachedAttributes(Subject subject,
+	List<CachedAttribute> asCachedAttributes(Subject subject,
 			Object object, Action action, Environment environment) {
-		List<CachedAttribute> result = new LinkedList<CachedAttribute>();
-		result.addAll(subject.asCachedAttributes());
-		result.addAll(object.asCachedAttributes());
-		result.addAll(action.asCachedAttributes());
-		result.addAll(environment.asCachedAttributes());
+		return asCachedAttributes(subject.asCachedAttributes(), object, action,
+				environment);
+	}
+
+	/**
+	 * Helper function to put the given cached attributes of a subject and the
+	 * attributes of the given object, action and environment in one list.
+	 */
+	private List<CachedAttribute> asCachedAttributes(
+			Collection<CachedAttribute> subjectAttributes, Object object,
+			Action action, Environment environment) {
+		Collection<CachedAttribute> objectAttributes = object
+				.asCachedAttributes();
+		Collection<CachedAttribute> actionAttributes = action
+				.asCachedAttributes();
+		Collection<CachedAttribute> environmentAttributes = environment
+				.asCachedAttributes();
+		List<CachedAttribute> result = new ArrayList<CachedAttribute>(
+				subjectAttributes.size() + objectAttributes.size()
+						+ actionAttributes.size()
+						+ environmentAttributes.size());
+		result.addAll(subjectAttributes);
+		result.addAll(objectAttributes);
+		result.addAll(actionAttributes);
+		result.addAll(environmentAttributes);
 		return result;
 	}
 
 	/**
 	 * Helper function to create a XACML request from a Subject, Object and
 	 * Action.
+	 * 
+	 * All attributes are passed to the PDP as cached attributes, so the
+	 * request itself only contains placeholders and is the same for every
+	 * call. Therefore, this returns a shared instance that should not be
+	 * modified.
 	 */
 	protected RequestType asRequest(Subject subject, Object object,
 			Action action) {
+		return REQUEST_TEMPLATE;
+	}
+
+	/**
+	 * Helper function to build the request returned by asRequest().
+	 */
+	private static RequestType buildRequestTemplate() {
 		SubjectType xacmlSubject = new SubjectType();
 		AttributeType subjectId = new AttributeType();
 		subjectId.setAttributeId("subject:id-which-should-never-be-needed");
@@ -305,6 +1179,8 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 		EnvironmentType xacmlEnvironment = new EnvironmentType(); // empty in
 																	// the
 																	// request
+		// create the lazily created list now, later reads must not write
+		xacmlEnvironment.getAttribute();
 
 		RequestType xacmlRequest = new RequestType();
 		xacmlRequest.getSubject().add(xacmlSubject);
@@ -360,32 +1236,39 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 	 * APPLICATION PDP MGMT
 	 ***********************/
 
+	/**
+	 * Returns the status of this PEP. If the central PUMA PDP cannot be
+	 * reached, the state of the circuit to it is added to the status. While
+	 * the PDP is being built in the background, the status is INITIALIZING,
+	 * while the warm-up workload runs, it is WARMING UP.
+	 */
 	@Override
 	public String getStatus() {
+		String status = this.status;
+		if (warmingUp && status.equals("OK")) {
+			status = "WARMING UP";
+		}
+		ApplicationPDP currentPDP = this.pdp;
+		if (currentPDP != null) {
+			CentralPUMAPDPCircuitBreaker.State circuit = currentPDP
+					.getCentralPUMAPDPCircuitState();
+			if (circuit != null
+					&& circuit != CentralPUMAPDPCircuitBreaker.State.CLOSED) {
+				return status + " (CENTRAL PUMA PDP CIRCUIT " + circuit + ")";
+			}
+		}
 		return status;
 	}
 
+	/**
+	 * Loads the given application policy in the background. The policy is
+	 * only written to the application policy file and put in use if a PDP
+	 * could be built from it and evaluated a sample request, else the current
+	 * policy stays in use.
+	 */
 	@Override
 	public void loadApplicationPolicy(String policy) {
-		PrintWriter writer;
-		try {
-			writer = new PrintWriter(applicationPolicyFilename, "UTF-8");
-		} catch (FileNotFoundException e) {
-			logger.log(
-					Level.SEVERE,
-					"Application policy file not found when writing new application policy",
-					e);
-			return;
-		} catch (UnsupportedEncodingException e) {
-			logger.log(Level.SEVERE,
-					"Unsupported encoding when writing new application policy",
-					e);
-			return;
-		}
-		writer.print(policy);
-		writer.close();
-		logger.info("Succesfully reloaded application policy");
-		this.reload();
+		scheduleReload(policy, this.remoteAccessIsEnabled);
 	}
 	
 	@Override
@@ -396,23 +1279,556 @@ public class ApplicationPEP implements PEP, ApplicationPDPMgmtRemote {
 		this.reload();
 	}
 
+	/**
+	 * Reloads the PDP from the application policy file in the background.
+	 * Requests keep being evaluated by the current PDP until the new one is
+	 * built and validated, after which the new PDP is swapped in, the decision
+	 * cache is flushed and the old PDP is closed once its in-flight requests
+	 * have finished. If the new PDP cannot be built, the current one stays in
+	 * use.
+	 * 
+	 * Since loadApplicationPolicy() and setRemoteDBAccess() reload as well,
+	 * they also flush the decision cache.
+	 */
 	@Override
 	public void reload() {
-		// just set up a new PDP
+		scheduleReload(null, this.remoteAccessIsEnabled);
+	}
+
+	/**
+	 * Reloads the PDP of the given tenant from its application policy in the
+	 * background. The requests of the tenant keep being evaluated by its
+	 * current PDP until the new one is built and validated, the requests of
+	 * other tenants are not affected. Has no effect if the PDP of the tenant
+	 * is not loaded: it is then loaded at the next request of the tenant.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 */
+	public void reloadTenant(String tenant) {
+		TenantPDPs currentTenantPDPs = this.tenantPDPs;
+		if (currentTenantPDPs != null) {
+			currentTenantPDPs.reload(tenant);
+		}
+	}
+
+	/**
+	 * Removes the cached attributes of the entity with the given id from the
+	 * attribute cache of the entity database, e.g., after the entity was
+	 * updated in the database. Since the decisions in the decision cache may
+	 * depend on these attributes, the decision cache is flushed as well.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 */
+	public void invalidateAttributes(String entityId) {
+		EntityAttributeFinderModule.getInstance().invalidate(entityId);
+		decisionCache.invalidateAll();
+	}
+
+	/**
+	 * Removes all cached attributes from the attribute cache of the entity
+	 * database, and flushes the decision cache.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 */
+	public void invalidateAllAttributes() {
+		EntityAttributeFinderModule.getInstance().invalidateAll();
+		decisionCache.invalidateAll();
+	}
+
+	/**
+	 * Stops reporting the metrics over JMX and closes the metrics endpoint,
+	 * so that its port is released. Also called when the JVM shuts down.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 */
+	public synchronized void stopMetrics() {
+		if (jmxReporter != null) {
+			jmxReporter.stop();
+			jmxReporter = null;
+		}
+		if (metricsEndpoint != null) {
+			metricsEndpoint.stop();
+			metricsEndpoint = null;
+		}
+	}
+
+	/**
+	 * Stores the given copy of the central PUMA policy next to the application
+	 * policy and reloads the PDP in the background so that the copy is
+	 * evaluated locally whenever the request carries all attributes it needs.
+	 * Only has effect when replication is enabled and the given version
+	 * differs from the one in use. An invalid copy is ignored.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the policy or the version is null.
+	 */
+	public void loadCentralPUMAPolicy(final String policy, final String version) {
+		if (policy == null || version == null) {
+			throw new IllegalArgumentException(
+					"Both the central PUMA policy and its version should be given");
+		}
+		announceCentralPUMAPolicyVersion(version);
+		if (!CENTRAL_PUMA_POLICY_REPLICATION) {
+			logger.warning("Ignoring copy of the central PUMA policy: replication is disabled");
+			return;
+		}
+		reloadExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				try {
+					return load();
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Could not store the copy of the central PUMA policy [version = "
+							+ version + "]", e);
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Could not load the copy of the central PUMA policy [version = "
+							+ version + "]", e);
+				}
+				return false;
+			}
+
+			private boolean load() throws IOException {
+				if (version.equals(centralPUMAPolicyVersion)) {
+					return false;
+				}
+				if (CentralPUMAPolicyReplica.parse(policy.getBytes("UTF-8"),
+						version) == null) {
+					logger.severe("Ignoring invalid copy of the central PUMA policy [version = "
+							+ version + "]");
+					return false;
+				}
+				FileUtils.writeStringToFile(new File(policyDir
+						+ CENTRAL_PUMA_POLICY_FILENAME), policy, "UTF-8");
+				FileUtils.writeStringToFile(new File(policyDir
+						+ CENTRAL_PUMA_POLICY_VERSION_FILENAME), version,
+						"UTF-8");
+				return buildAndSwapPDP(null, remoteAccessIsEnabled);
+			}
+		});
+	}
+
+	/**
+	 * Sets the attributes the given version of the central PUMA policy can
+	 * reference, including those of the policies it refers to. From now on,
+	 * only those attributes are sent to the central PUMA PDP. This takes
+	 * precedence over the attributes found in the local copy of the central
+	 * PUMA policy. Pass null to send all attributes again. The attributes are
+	 * only used while the given version is the latest version of the central
+	 * PUMA policy announced, so attributes without a version are never used.
+	 * 
+	 * NOTICE: ApplicationPDPMgmtRemote is defined in the PUMA RMI utils, so
+	 * this is not (yet) part of that interface.
+	 */
+	public synchronized void loadCentralPUMAPolicyAttributes(
+			Set<String> attributeIds, String version) {
+		if (version != null) {
+			announceCentralPUMAPolicyVersion(version);
+		}
+		this.centralPUMAPolicyAttributes = attributeIds == null ? null
+				: new AttributeProjection(attributeIds, version);
+		if (this.pdp != null) {
+			this.pdp.setAttributeProjection(getAttributeProjection(
+					readCentralPUMAPolicyReplica()));
+		}
+	}
+
+	/**
+	 * Helper function to choose the attributes to send to the central PUMA
+	 * PDP: those pushed with loadCentralPUMAPolicyAttributes() or else those
+	 * found in the given local copy of the central PUMA policy, but only if
+	 * they are for the version of the central PUMA policy the central PUMA
+	 * PDP serves. Returns null if they are not known for that version, in
+	 * which case all attributes are sent.
+	 */
+	private AttributeProjection getAttributeProjection(
+			CentralPUMAPolicyReplica replica) {
+		String served = getServedCentralPUMAPolicyVersion(replica);
+		if (this.centralPUMAPolicyAttributes != null
+				&& this.centralPUMAPolicyAttributes.isFor(served)) {
+			return this.centralPUMAPolicyAttributes;
+		}
+		if (replica != null) {
+			AttributeProjection projection = AttributeProjection.of(
+					replica.getAnalysis(), replica.getVersion());
+			if (projection != null && projection.isFor(served)) {
+				return projection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to determine the version of the central PUMA policy the
+	 * central PUMA PDP serves: the version last announced or else the version
+	 * of the given local copy of the central PUMA policy. Returns null if it
+	 * is not known.
+	 */
+	private String getServedCentralPUMAPolicyVersion(
+			CentralPUMAPolicyReplica replica) {
+		String announced = this.announcedCentralPUMAPolicyVersion;
+		if (announced != null) {
+			return announced;
+		}
+		if (replica != null
+				&& !UNKNOWN_CENTRAL_PUMA_POLICY_VERSION.equals(replica
+						.getVersion())) {
+			return replica.getVersion();
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to remember the version of the central PUMA policy the
+	 * central PUMA PDP serves from now on. Until the attributes for this
+	 * version are known, all attributes are sent to the central PUMA PDP.
+	 */
+	private void announceCentralPUMAPolicyVersion(String version) {
+		this.announcedCentralPUMAPolicyVersion = version;
+		ApplicationPDP currentPDP = this.pdp;
+		if (currentPDP != null) {
+			currentPDP.setCentralPUMAPolicyVersion(version);
+		}
+	}
+
+	/**
+	 * Returns the version of the local copy of the central PUMA policy in use
+	 * or null if there is none.
+	 */
+	public String getCentralPUMAPolicyVersion() {
+		return centralPUMAPolicyVersion;
+	}
+
+	/**
+	 * Helper function to read the local copy of the central PUMA policy, if
+	 * replication is enabled and there is one.
+	 */
+	private CentralPUMAPolicyReplica readCentralPUMAPolicyReplica() {
+		if (!CENTRAL_PUMA_POLICY_REPLICATION) {
+			return null;
+		}
+		File policyFile = new File(policyDir + CENTRAL_PUMA_POLICY_FILENAME);
+		File versionFile = new File(policyDir
+				+ CENTRAL_PUMA_POLICY_VERSION_FILENAME);
+		if (!policyFile.exists()) {
+			return null;
+		}
+		try {
+			String version = versionFile.exists() ? FileUtils
+					.readFileToString(versionFile, "UTF-8").trim()
+					: UNKNOWN_CENTRAL_PUMA_POLICY_VERSION;
+			return CentralPUMAPolicyReplica.parse(
+					FileUtils.readFileToByteArray(policyFile), version);
+		} catch (IOException e) {
+			logger.log(Level.WARNING,
+					"IOException when reading copy of the central PUMA policy",
+					e);
+			return null;
+		}
+	}
+
+	/**
+	 * Helper function to reload the PDP on the reload thread.
+	 * 
+	 * @return A future that completes with whether the new PDP was put in
+	 *         use.
+	 */
+	private Future<Boolean> scheduleReload(final String policy,
+			final Boolean remoteAccess) {
+		return reloadExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				boolean swapped = buildAndSwapPDP(policy, remoteAccess);
+				if (swapped) {
+					logger.info("Reloaded application PDP [remote access = "
+							+ remoteAccess.toString() + "]");
+				}
+				return swapped;
+			}
+		});
+	}
+
+	/**
+	 * Helper function to build a new PDP, validate it and put it in use.
+	 * 
+	 * @param policy
+	 *            The new application policy or null to read the application
+	 *            policy file. A new policy is only written to the application
+	 *            policy file if it is valid.
+	 * @return Whether the new PDP was put in use.
+	 */
+	private synchronized boolean buildAndSwapPDP(String policy,
+			Boolean remoteAccess) {
+		// 1. build the new PDP
 		InputStream applicationPolicyStream;
+		if (policy == null) {
+			try {
+				applicationPolicyStream = new FileInputStream(
+						applicationPolicyFilename);
+			} catch (FileNotFoundException e) {
+				logger.log(Level.SEVERE,
+						"Could not load PDP: application policy file not found",
+						e);
+				if (this.pdp == null) {
+					status = "APPLICATION POLICY FILE NOT FOUND";
+				}
+				return false;
+			}
+		} else {
+			try {
+				applicationPolicyStream = new ByteArrayInputStream(
+						policy.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				logger.log(Level.SEVERE,
+						"Unsupported encoding when reading new application policy",
+						e);
+				return false;
+			}
+		}
+		List<InputStream> additionalPolicyStreams = new ArrayList<InputStream>();
+		CentralPUMAPolicyReplica replica = readCentralPUMAPolicyReplica();
+		ApplicationPDP newPDP;
 		try {
-			applicationPolicyStream = new FileInputStream(
-					applicationPolicyFilename);
+			if (!openAdditionalPolicies(new File(policyDir
+					+ ADDITIONAL_POLICIES_DIRNAME), additionalPolicyStreams)) {
+				if (this.pdp == null) {
+					status = "APPLICATION POLICY FILE NOT FOUND";
+				}
+				return false;
+			}
+			newPDP = new ApplicationPDP(applicationPolicyStream,
+					additionalPolicyStreams, remoteAccess, replica);
+		} finally {
+			IOUtils.closeQuietly(applicationPolicyStream);
+			for (InputStream additionalPolicyStream : additionalPolicyStreams) {
+				IOUtils.closeQuietly(additionalPolicyStream);
+			}
+		}
+		// 2. validate and warm it up with a sample request
+		if (!newPDP.isOperational() || !warmUp(newPDP)) {
+			logger.severe("Could not load PDP: the application policy is not valid, keeping the current PDP");
+			newPDP.close();
+			if (this.pdp == null) {
+				status = "APPLICATION POLICY NOT VALID";
+			}
+			return false;
+		}
+		// 3. store the new policy
+		if (policy != null && !writeApplicationPolicy(policy)) {
+			newPDP.close();
+			return false;
+		}
+		// 4. swap and get rid of the old PDP
+		ApplicationPDP oldPDP = this.pdp;
+		this.pdp = newPDP;
+		// after the swap, so that no version or attributes pushed in the
+		// meantime are lost
+		newPDP.setCentralPUMAPolicyVersion(getServedCentralPUMAPolicyVersion(
+				replica));
+		newPDP.setAttributeProjection(getAttributeProjection(replica));
+		this.centralPUMAPolicyVersion = replica == null ? null : replica
+				.getVersion();
+		policyVersion.incrementAndGet();
+		newPDP.publishMetrics();
+		decisionCache.invalidateAll();
+		status = "OK";
+		// the PDPs of the tenants share the connection to the central PUMA
+		// PDP of the old PDP: rebuild them so that they use the new one. The
+		// old connection is only closed when the old PDP and all tenant PDPs
+		// that use it are closed, see retainCentralPUMAPDPModule().
+		TenantPDPs currentTenantPDPs = this.tenantPDPs;
+		if (currentTenantPDPs != null) {
+			currentTenantPDPs.reloadAll();
+		}
+		if (oldPDP != null) {
+			oldPDP.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Helper function to get the size in bytes of the application policies of
+	 * the given tenant, -1 if the tenant has no application policy of its
+	 * own.
+	 */
+	private long getTenantPolicySize(String tenant) {
+		File dir = getTenantDirectory(tenant);
+		if (dir == null) {
+			return -1;
+		}
+		File applicationPolicyFile = new File(dir, APPLICATION_POLICY_FILENAME);
+		if (!applicationPolicyFile.isFile()) {
+			return -1;
+		}
+		long result = applicationPolicyFile.length();
+		File[] files = new File(dir, ADDITIONAL_POLICIES_DIRNAME).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && file.getName().endsWith(".xml")) {
+					result += file.length();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to build and warm up the PDP of the given tenant. The
+	 * PDP shares the connection to the central PUMA PDP with the current PDP.
+	 * Returns null if the policies of the tenant are not valid.
+	 */
+	private ApplicationPDP buildTenantPDP(String tenant) {
+		File dir = getTenantDirectory(tenant);
+		if (dir == null) {
+			return null;
+		}
+		InputStream applicationPolicyStream = null;
+		List<InputStream> additionalPolicyStreams = new ArrayList<InputStream>();
+		ApplicationPDP newPDP;
+		try {
+			applicationPolicyStream = new FileInputStream(new File(dir,
+					APPLICATION_POLICY_FILENAME));
+			if (!openAdditionalPolicies(new File(dir,
+					ADDITIONAL_POLICIES_DIRNAME), additionalPolicyStreams)) {
+				return null;
+			}
+			RemotePolicyEvaluatorModule module = retainCentralPUMAPDPModule();
+			if (module == null) {
+				return null;
+			}
+			newPDP = new ApplicationPDP(applicationPolicyStream,
+					additionalPolicyStreams, this.remoteAccessIsEnabled,
+					module, true);
 		} catch (FileNotFoundException e) {
+			logger.log(Level.SEVERE, "Could not load PDP of tenant " + tenant
+					+ ": application policy file not found", e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(applicationPolicyStream);
+			for (InputStream additionalPolicyStream : additionalPolicyStreams) {
+				IOUtils.closeQuietly(additionalPolicyStream);
+			}
+		}
+		if (!newPDP.isOperational() || !warmUp(newPDP)) {
+			newPDP.close();
+			return null;
+		}
+		return newPDP;
+	}
+
+	/**
+	 * Helper function to retain the module for the central PUMA policy of the
+	 * current PDP, see ApplicationPDP.retainCentralPUMAPDPModule(). Returns
+	 * null if there is no PDP (yet).
+	 */
+	private RemotePolicyEvaluatorModule retainCentralPUMAPDPModule() {
+		while (true) {
+			ApplicationPDP currentPDP = this.pdp;
+			if (currentPDP == null) {
+				return null;
+			}
+			RemotePolicyEvaluatorModule module = currentPDP
+					.retainCentralPUMAPDPModule();
+			if (module != null) {
+				return module;
+			}
+			if (currentPDP == this.pdp) {
+				logger.severe("The connection to the central PUMA PDP of the current PDP is closed");
+				return null;
+			}
+			// the PDP was replaced and closed in the meantime, retry with the
+			// new one
+		}
+	}
+
+	/**
+	 * Helper function to get the policy directory of the given tenant, null
+	 * if the tenant id cannot be used as a directory name.
+	 */
+	private File getTenantDirectory(String tenant) {
+		if (tenant.isEmpty() || tenant.startsWith(".")
+				|| !tenant.matches("[A-Za-z0-9_.@-]+")) {
+			return null;
+		}
+		return new File(policyDir + TENANTS_DIRNAME, tenant);
+	}
+
+	/**
+	 * Helper function to open the additional application policies in the
+	 * given directory, in the order of their file names. Returns whether all
+	 * of them could be opened.
+	 */
+	private boolean openAdditionalPolicies(File dir, List<InputStream> streams) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return true;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.isFile() || !file.getName().endsWith(".xml")) {
+				continue;
+			}
+			try {
+				streams.add(new FileInputStream(file));
+			} catch (FileNotFoundException e) {
+				logger.log(Level.SEVERE,
+						"Could not load PDP: additional application policy file "
+								+ file.getName() + " not found", e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper function to evaluate a sample request on a new PDP before it is
+	 * put in use. Returns whether the PDP returned a response. The request is
+	 * synthetic (see ApplicationPDP.evaluateSynthetic()), so this does not
+	 * contact the central PUMA PDP or the entity database and does not
+	 * record any metrics.
+	 */
+	private boolean warmUp(ApplicationPDP newPDP) {
+		try {
+			ResponseCtx response = newPDP.evaluateSynthetic(REQUEST_TEMPLATE,
+					Collections.<CachedAttribute> emptyList());
+			return response != null && !response.getResults().isEmpty();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Sample evaluation on the new PDP failed",
+					e);
+			return false;
+		}
+	}
+
+	/**
+	 * Helper function to write the given policy to the application policy
+	 * file.
+	 */
+	private boolean writeApplicationPolicy(String policy) {
+		PrintWriter writer;
+		try {
+			writer = new PrintWriter(applicationPolicyFilename, "UTF-8");
+		} catch (FileNotFoundException e) {
+			logger.log(
+					Level.SEVERE,
+					"Application policy file not found when writing new application policy",
+					e);
+			return false;
+		} catch (UnsupportedEncodingException e) {
 			logger.log(Level.SEVERE,
-					"Could not reload PDP: application policy file not found",
+					"Unsupported encoding when writing new application policy",
 					e);
-			status = "APPLICATION POLICY FILE NOT FOUND";
-			return;
+			return false;
 		}
-		this.pdp = new ApplicationPDP(applicationPolicyStream, this.remoteAccessIsEnabled);
-		logger.info("Reloaded application PDP [remote access = " + this.remoteAccessIsEnabled.toString() + "]");
-		status = "OK";
+		writer.print(policy);
+		writer.close();
+		logger.info("Succesfully stored new application policy");
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import puma.peputils.Action;
+import puma.peputils.Environment;
+import puma.peputils.Object;
+import puma.peputils.Subject;
+
+/**
+ * A single (subject, object, action, environment) question, used for asking
+ * many questions at once using ApplicationPEP.isAuthorizedBatch().
+ *
+ * @author Maarten Decat
+ *
+ */
+public class AuthorizationRequest {
+
+	private final Subject subject;
+
+	private final Object object;
+
+	private final Action action;
+
+	private final Environment environment;
+
+	public AuthorizationRequest(Subject subject, Object object, Action action,
+			Environment environment) {
+		this.subject = subject;
+		this.object = object;
+		this.action = action;
+		this.environment = environment;
+	}
+
+	public Subject getSubject() {
+		return subject;
+	}
+
+	public Object getObject() {
+		return object;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public Environment getEnvironment() {
+		return environment;
+	}
+}
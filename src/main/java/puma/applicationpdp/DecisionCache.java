@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.xacml.attr.AttributeValue;
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * Bounded in-process cache of authorization decisions, keyed on a canonical
+ * fingerprint of the cached attributes of a request.
+ *
+ * Entries are considered stale after the configured TTL. When the cache is
+ * full, the least recently used entries are evicted in batches. The LRU
+ * order is approximate: every entry remembers when it was last read, so
+ * that a cache hit does not take any lock. Only the eviction itself, which
+ * is done on a put, is serialized.
+ *
+ * The cache is flushed by the PEP on every reload of the PDP. To avoid
+ * serving a decision of the old PDP after such a flush, every entry carries
+ * the generation in which it was computed: callers first take a generation
+ * with currentGeneration() and pass it to put(), and entries of an older
+ * generation are never returned.
+ *
+ * @author Maarten Decat
+ *
+ */
+class DecisionCache {
+
+	private static final String HITS_COUNTER_NAME = "cache.hits";
+
+	private static final String MISSES_COUNTER_NAME = "cache.misses";
+
+	private static final String EVICTIONS_COUNTER_NAME = "cache.evictions";
+
+	private static final String SIZE_GAUGE_NAME = "cache.size";
+
+	/**
+	 * The fraction of the maximal size that is evicted at once when the cache
+	 * is full.
+	 */
+	private static final double EVICTION_BATCH = 0.1;
+
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Whether some thread is evicting entries. Evictions are never run
+	 * concurrently and never block reads.
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	private final Counter evictions;
+
+	/**
+	 * Creates a new decision cache.
+	 *
+	 * @param maxSize
+	 *            The maximal number of decisions to keep. A size of 0 or less
+	 *            disables the cache.
+	 * @param ttl
+	 *            The time to live of a decision, in milliseconds.
+	 */
+	public DecisionCache(int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new ConcurrentHashMap<String, Entry>(Math.max(16,
+				Math.min(maxSize, 1 << 16)));
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.hits = registry.counter(MetricRegistry.name(ApplicationPEP.class,
+				HITS_COUNTER_NAME));
+		this.misses = registry.counter(MetricRegistry.name(
+				ApplicationPEP.class, MISSES_COUNTER_NAME));
+		this.evictions = registry.counter(MetricRegistry.name(
+				ApplicationPEP.class, EVICTIONS_COUNTER_NAME));
+		String sizeGaugeName = MetricRegistry.name(ApplicationPEP.class,
+				SIZE_GAUGE_NAME);
+		registry.remove(sizeGaugeName);
+		registry.register(sizeGaugeName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return size();
+			}
+		});
+	}
+
+	/**
+	 * Returns whether this cache stores anything at all.
+	 */
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Returns the cached decision for the given key or null if there is no
+	 * (fresh) decision for this key.
+	 */
+	public Integer get(String key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.inc();
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (entry.generation != generation.get() || entry.isExpired(now)) {
+			if (entries.remove(key, entry)) {
+				evictions.inc();
+			}
+			misses.inc();
+			return null;
+		}
+		entry.lastAccess = now;
+		hits.inc();
+		return entry.decision;
+	}
+
+	/**
+	 * Returns the current generation of this cache, to be passed to put().
+	 */
+	public long currentGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Stores the given decision for the given key if the cache has not been
+	 * flushed since the given generation was taken.
+	 */
+	public void put(String key, int decision, long generation) {
+		if (!isEnabled() || generation != this.generation.get()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		entries.put(key, new Entry(decision, now + ttl, generation, now));
+		if (entries.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Removes all decisions from this cache.
+	 */
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of decisions currently in the cache.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Helper function to evict the stale entries and, if the cache is still
+	 * full, the least recently used entries down to (1 - EVICTION_BATCH)
+	 * times the maximal size, so that evictions are not needed on every put.
+	 * Concurrent puts that also find the cache full do not wait for this.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			long current = generation.get();
+			// copy the access times, so that they do not change while sorting
+			List<Candidate> candidates = new ArrayList<Candidate>(
+					entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				if (entry.generation != current || entry.isExpired(now)) {
+					if (entries.remove(e.getKey(), entry)) {
+						evictions.inc();
+					}
+				} else {
+					candidates.add(new Candidate(e.getKey(), entry));
+				}
+			}
+			int excess = entries.size() - (int) (maxSize * (1 - EVICTION_BATCH));
+			if (excess <= 0) {
+				return;
+			}
+			Collections.sort(candidates, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate a, Candidate b) {
+					return Long.compare(a.lastAccess, b.lastAccess);
+				}
+			});
+			for (int i = 0; i < excess && i < candidates.size(); i++) {
+				Candidate candidate = candidates.get(i);
+				if (entries.remove(candidate.key, candidate.entry)) {
+					evictions.inc();
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Builds the canonical fingerprint of the given attributes: the attributes
+	 * sorted on their id, each with its type and its sorted values. The order
+	 * in which the attributes or their values were added therefore does not
+	 * matter.
+	 */
+	@SuppressWarnings("unchecked")
+	public static String fingerprint(Collection<CachedAttribute> attributes) {
+		List<String> parts = new ArrayList<String>(attributes.size());
+		for (CachedAttribute ca : attributes) {
+			List<String> values = new ArrayList<String>();
+			for (AttributeValue av : (Collection<AttributeValue>) ca.getValue()
+					.getValue()) {
+				values.add(escape(av.encode()));
+			}
+			Collections.sort(values);
+			StringBuilder part = new StringBuilder();
+			part.append(escape(ca.getId())).append('|')
+					.append(escape(ca.getType())).append('=');
+			for (String value : values) {
+				part.append(value).append(',');
+			}
+			parts.add(part.toString());
+		}
+		Collections.sort(parts);
+		StringBuilder result = new StringBuilder();
+		for (String part : parts) {
+			result.append(part).append(';');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Helper function to escape the separators used in the fingerprint.
+	 */
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("|", "\\|")
+				.replace("=", "\\=").replace(",", "\\,").replace(";", "\\;");
+	}
+
+	/**
+	 * A cached decision with its expiry time and generation.
+	 */
+	private static class Entry {
+
+		private final int decision;
+
+		private final long expiresAt;
+
+		private final long generation;
+
+		/**
+		 * When this entry was last read, for the approximate LRU order. Racy
+		 * updates are fine: any recent time will do.
+		 */
+		private volatile long lastAccess;
+
+		private Entry(int decision, long expiresAt, long generation,
+				long lastAccess) {
+			this.decision = decision;
+			this.expiresAt = expiresAt;
+			this.generation = generation;
+			this.lastAccess = lastAccess;
+		}
+
+		private boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	/**
+	 * An entry considered for eviction, with the time it was last read when
+	 * the eviction started.
+	 */
+	private static class Candidate {
+
+		private final String key;
+
+		private final Entry entry;
+
+		private final long lastAccess;
+
+		private Candidate(String key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+/**
+ * Handle to the attributes of a subject registered with
+ * ApplicationPEP.registerSubject(), so that they do not have to be converted
+ * again on every call to isAuthorized().
+ *
+ * A handle stays valid until it is released, until its subject is registered
+ * again (for example because its attributes changed) or until it has not been
+ * used for the session TTL. Calls with an invalid handle transparently fall
+ * back to the attributes of the given subject, the handle does not become
+ * valid again. Calls with a handle of another subject are denied.
+ *
+ * @author Maarten Decat
+ *
+ */
+public final class SubjectSession {
+
+	private final String subjectId;
+
+	private final long version;
+
+	SubjectSession(String subjectId, long version) {
+		this.subjectId = subjectId;
+		this.version = version;
+	}
+
+	public String getSubjectId() {
+		return subjectId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return "SubjectSession(" + subjectId + ", " + version + ")";
+	}
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import puma.peputils.Subject;
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * The registered subjects and their cached attributes, by subject id.
+ *
+ * Every registration gets a new version, so that handles of an earlier
+ * registration of the same subject are recognized as stale. Registrations
+ * that have not been used for the TTL are removed.
+ *
+ * @author Maarten Decat
+ *
+ */
+class SubjectSessions {
+
+	/**
+	 * The number of registrations after which expired registrations are
+	 * removed.
+	 */
+	private static final int SWEEP_INTERVAL = 1024;
+
+	private final long ttl;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong versions = new AtomicLong();
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	/**
+	 * @param ttl
+	 *            The time after which an unused registration expires, in
+	 *            milliseconds.
+	 */
+	SubjectSessions(long ttl) {
+		this.ttl = ttl;
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.hits = registry.counter(MetricRegistry.name(ApplicationPEP.class,
+				"session.hits"));
+		this.misses = registry.counter(MetricRegistry.name(
+				ApplicationPEP.class, "session.misses"));
+		String sizeName = MetricRegistry.name(ApplicationPEP.class,
+				"session.count");
+		registry.remove(sizeName);
+		registry.register(sizeName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return entries.size();
+			}
+		});
+	}
+
+	/**
+	 * Registers the attributes of the given subject, replacing any earlier
+	 * registration of the same subject.
+	 */
+	SubjectSession register(Subject subject) {
+		long version = versions.incrementAndGet();
+		entries.put(subject.getId(), new Entry(version, subject));
+		if (version % SWEEP_INTERVAL == 0) {
+			sweep();
+		}
+		return new SubjectSession(subject.getId(), version);
+	}
+
+	/**
+	 * Returns the cached attributes of the given session. If the session is
+	 * no longer valid (released, expired or replaced by a newer
+	 * registration), the attributes of the given subject are returned
+	 * instead. An invalid session is never registered again: only
+	 * register() creates registrations.
+	 * 
+	 * The caller should check that the given subject is the subject of the
+	 * session.
+	 */
+	Collection<CachedAttribute> getAttributes(SubjectSession session,
+			Subject subject) {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(session.getSubjectId());
+		if (entry != null && entry.version == session.getVersion()) {
+			if (now - entry.lastUsed < ttl) {
+				entry.lastUsed = now;
+				hits.inc();
+				return entry.attributes;
+			}
+			entries.remove(session.getSubjectId(), entry);
+		}
+		misses.inc();
+		return subject.asCachedAttributes();
+	}
+
+	/**
+	 * Removes the registration of the given session, unless its subject was
+	 * registered again in the meantime.
+	 */
+	void release(SubjectSession session) {
+		Entry entry = entries.get(session.getSubjectId());
+		if (entry != null && entry.version == session.getVersion()) {
+			entries.remove(session.getSubjectId(), entry);
+		}
+	}
+
+	/**
+	 * Helper function to remove the expired registrations.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().lastUsed >= ttl) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A registration of a subject.
+	 */
+	private static class Entry {
+
+		private final long version;
+
+		private final Collection<CachedAttribute> attributes;
+
+		private volatile long lastUsed;
+
+		private Entry(long version, Subject subject) {
+			this.version = version;
+			this.attributes = Collections
+					.unmodifiableList(new ArrayList<CachedAttribute>(subject
+							.asCachedAttributes()));
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import puma.applicationpdp.pdp.ApplicationPDP;
+import puma.applicationpdp.pdp.Deadline;
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * The PDPs of the tenants that have their own application policy, by tenant
+ * id.
+ *
+ * The PDP of a tenant is only built when the first request of that tenant
+ * arrives, on one of a few loader threads. Only the requests of that tenant
+ * wait for it. The least recently used tenants are evicted when the policies
+ * of all tenants together exceed maxBytes (as an estimate of the memory they
+ * take) or when there are more than maxTenants tenants. Tenants without
+ * their own policy are not kept, so that arbitrary tenant values cannot
+ * evict the loaded tenants: their policy directory is checked on every
+ * request instead.
+ *
+ * Reloading the PDP of a tenant happens in the background: the requests of
+ * the tenant keep using the current PDP until the new one is ready and the
+ * requests of the other tenants are not affected at all. A reload requested
+ * while the tenant is being loaded is started when that load is done, so
+ * that it does not miss the latest policies.
+ *
+ * @author Maarten Decat
+ *
+ */
+class TenantPDPs {
+
+	/**
+	 * Builds the PDP of a tenant.
+	 */
+	interface Loader {
+
+		/**
+		 * Returns the size in bytes of the application policies of the given
+		 * tenant, or -1 if the tenant has no application policy of its own.
+		 */
+		long getPolicySize(String tenant);
+
+		/**
+		 * Builds and warms up the PDP of the given tenant. Returns null if the
+		 * policies of the tenant are not valid.
+		 */
+		ApplicationPDP load(String tenant);
+
+		/**
+		 * Called when the PDP used for the given tenant changed, so that the
+		 * decisions reached with the previous one can be forgotten.
+		 */
+		void loaded(String tenant);
+	}
+
+	private static final Logger logger = Logger.getLogger(TenantPDPs.class
+			.getName());
+
+	private final Loader loader;
+
+	private final long maxBytes;
+
+	private final int maxTenants;
+
+	/**
+	 * The loaded tenants, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, Tenant> tenants = new LinkedHashMap<String, Tenant>(
+			16, 0.75f, true);
+
+	/**
+	 * The total size of the policies of the loaded tenants. Guarded by
+	 * tenants.
+	 */
+	private long bytes = 0;
+
+	/**
+	 * The loads that are in progress, so that concurrent requests of the same
+	 * tenant wait for the same load.
+	 */
+	private final ConcurrentMap<String, CompletableFuture<Tenant>> loading = new ConcurrentHashMap<String, CompletableFuture<Tenant>>();
+
+	/**
+	 * The tenants for which a reload is started when their current load is
+	 * done.
+	 */
+	private final Set<String> pendingReloads = ConcurrentHashMap
+			.<String> newKeySet();
+
+	private final ExecutorService loaderExecutor;
+
+	/**
+	 * The thread on which evicted PDPs are closed, since closing waits for the
+	 * requests still in flight.
+	 */
+	private final ExecutorService closeExecutor;
+
+	private final Counter loads;
+
+	private final Counter evictions;
+
+	/**
+	 * @param maxBytes
+	 *            The maximal total size of the policies of the loaded tenants.
+	 * @param maxTenants
+	 *            The maximal number of loaded tenants.
+	 * @param loaderThreads
+	 *            The number of threads on which PDPs are built.
+	 */
+	TenantPDPs(Loader loader, long maxBytes, int maxTenants,
+			int loaderThreads) {
+		this.loader = loader;
+		this.maxBytes = maxBytes;
+		this.maxTenants = maxTenants;
+		this.loaderExecutor = Executors.newFixedThreadPool(loaderThreads,
+				new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "application-pdp-tenant-loader-"
+								+ counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.closeExecutor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "application-pdp-tenant-closer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.loads = registry.counter(MetricRegistry.name(ApplicationPEP.class,
+				"tenants.loads"));
+		this.evictions = registry.counter(MetricRegistry.name(
+				ApplicationPEP.class, "tenants.evictions"));
+		register(registry, "tenants.count", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				synchronized (tenants) {
+					return tenants.size();
+				}
+			}
+		});
+		register(registry, "tenants.bytes", new Gauge<Long>() {
+			@Override
+			public Long getValue() {
+				synchronized (tenants) {
+					return bytes;
+				}
+			}
+		});
+		register(registry, "tenants.utilisation", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				synchronized (tenants) {
+					return ((double) bytes) / TenantPDPs.this.maxBytes;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the given tenant, loading it if needed. The PDP of the returned
+	 * tenant is null if its policy is not valid. Returns null if the tenant
+	 * has no application policy of its own or if it could not be loaded.
+	 * 
+	 * @param deadline
+	 *            The deadline until which to wait for the tenant to be
+	 *            loaded, see Deadline.
+	 * @throws TimeoutException
+	 *             If the tenant was not loaded before the deadline.
+	 */
+	Tenant get(String tenant, long deadline) throws TimeoutException {
+		synchronized (tenants) {
+			Tenant result = tenants.get(tenant);
+			if (result != null) {
+				return result;
+			}
+		}
+		CompletableFuture<Tenant> future = loading.get(tenant);
+		if (future == null) {
+			if (loader.getPolicySize(tenant) < 0) {
+				return null;
+			}
+			CompletableFuture<Tenant> ours = new CompletableFuture<Tenant>();
+			future = loading.putIfAbsent(tenant, ours);
+			if (future == null) {
+				future = ours;
+				load(tenant, ours);
+			}
+		}
+		try {
+			if (deadline == Deadline.NONE) {
+				return future.get();
+			}
+			return future.get(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+		} catch (ExecutionException e) {
+			logger.log(Level.SEVERE, "Could not load tenant " + tenant,
+					e.getCause());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TimeoutException("Interrupted while loading tenant "
+					+ tenant);
+		}
+	}
+
+	/**
+	 * Rebuilds the PDP of the given tenant in the background, if the tenant is
+	 * loaded or being loaded. The current PDP of the tenant stays in use until
+	 * the new one is ready. If the tenant is being loaded, it is rebuilt again
+	 * when that load is done.
+	 */
+	void reload(final String tenant) {
+		synchronized (tenants) {
+			if (!tenants.containsKey(tenant) && !loading.containsKey(tenant)) {
+				return;
+			}
+		}
+		CompletableFuture<Tenant> ours = new CompletableFuture<Tenant>();
+		CompletableFuture<Tenant> current = loading.putIfAbsent(tenant, ours);
+		if (current == null) {
+			load(tenant, ours);
+		} else if (pendingReloads.add(tenant)) {
+			// the current load may have read the previous policies
+			current.whenComplete(new BiConsumer<Tenant, Throwable>() {
+				@Override
+				public void accept(Tenant result, Throwable t) {
+					pendingReloads.remove(tenant);
+					reload(tenant);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Rebuilds the PDPs of all loaded tenants and of the tenants that are
+	 * being loaded in the background.
+	 */
+	void reloadAll() {
+		Set<String> ids = new HashSet<String>();
+		synchronized (tenants) {
+			ids.addAll(tenants.keySet());
+		}
+		ids.addAll(loading.keySet());
+		for (String id : ids) {
+			reload(id);
+		}
+	}
+
+	/**
+	 * Helper function to load the given tenant on a loader thread, put it in
+	 * use and complete the given future with it.
+	 */
+	private void load(final String tenant, final CompletableFuture<Tenant> future) {
+		CompletableFuture.supplyAsync(new Supplier<Tenant>() {
+			@Override
+			public Tenant get() {
+				long size = loader.getPolicySize(tenant);
+				if (size < 0) {
+					// the policy of the tenant was removed
+					remove(tenant);
+					return null;
+				}
+				loads.inc();
+				ApplicationPDP pdp = null;
+				try {
+					pdp = loader.load(tenant);
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Could not load the PDP of tenant "
+							+ tenant, e);
+				}
+				if (pdp == null) {
+					logger.severe("The application policy of tenant " + tenant
+							+ " is not valid, using the default PDP");
+				}
+				Tenant result = put(new Tenant(tenant, pdp, size));
+				loader.loaded(tenant);
+				return result;
+			}
+		}, loaderExecutor).whenComplete(
+				new BiConsumer<Tenant, Throwable>() {
+					@Override
+					public void accept(Tenant result, Throwable t) {
+						loading.remove(tenant, future);
+						if (t != null) {
+							future.completeExceptionally(t);
+						} else {
+							future.complete(result);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Helper function to put the given tenant in use, replacing its previous
+	 * version, and evict the least recently used tenants if needed.
+	 */
+	private Tenant put(Tenant tenant) {
+		List<Tenant> evicted = new ArrayList<Tenant>();
+		synchronized (tenants) {
+			Tenant previous = tenants.put(tenant.id, tenant);
+			bytes += tenant.bytes;
+			if (previous != null) {
+				bytes -= previous.bytes;
+				evicted.add(previous);
+			}
+			Iterator<Map.Entry<String, Tenant>> it = tenants.entrySet()
+					.iterator();
+			while ((bytes > maxBytes || tenants.size() > maxTenants)
+					&& it.hasNext()) {
+				Tenant lru = it.next().getValue();
+				if (lru == tenant) {
+					continue;
+				}
+				it.remove();
+				bytes -= lru.bytes;
+				evicted.add(lru);
+				evictions.inc();
+				lru.removeMetrics();
+			}
+		}
+		for (final Tenant old : evicted) {
+			if (old.pdp != null) {
+				closeExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						old.pdp.close();
+					}
+				});
+			}
+		}
+		return tenant;
+	}
+
+	/**
+	 * Helper function to stop using the given tenant.
+	 */
+	private void remove(String tenant) {
+		final Tenant old;
+		synchronized (tenants) {
+			old = tenants.remove(tenant);
+			if (old == null) {
+				return;
+			}
+			bytes -= old.bytes;
+			old.removeMetrics();
+		}
+		loader.loaded(tenant);
+		if (old.pdp != null) {
+			closeExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					old.pdp.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Helper function to (re-)register a gauge.
+	 */
+	private static void register(MetricRegistry registry, String name,
+			Gauge<?> gauge) {
+		String fullName = MetricRegistry.name(ApplicationPEP.class, name);
+		registry.remove(fullName);
+		registry.register(fullName, gauge);
+	}
+
+	/**
+	 * A loaded tenant.
+	 */
+	static class Tenant {
+
+		private final String id;
+
+		private final ApplicationPDP pdp;
+
+		private final long bytes;
+
+		private final String latencyName;
+
+		private final Timer latency;
+
+		private Tenant(String id, ApplicationPDP pdp, long bytes) {
+			this.id = id;
+			this.pdp = pdp;
+			this.bytes = bytes;
+			this.latencyName = MetricRegistry.name(ApplicationPEP.class,
+					"tenants", id, "latency");
+			this.latency = pdp == null ? null : TimerFactory.getInstance()
+					.getMetricRegistry().timer(latencyName);
+		}
+
+		/**
+		 * Returns the PDP of this tenant, null if the default PDP should be
+		 * used.
+		 */
+		ApplicationPDP getPDP() {
+			return pdp;
+		}
+
+		/**
+		 * Returns the timer for the evaluation latency of this tenant, null if
+		 * the default PDP should be used.
+		 */
+		Timer getLatency() {
+			return latency;
+		}
+
+		private void removeMetrics() {
+			if (latency != null) {
+				TimerFactory.getInstance().getMetricRegistry()
+						.remove(latencyName);
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import puma.peputils.Action;
+import puma.peputils.Environment;
+import puma.peputils.Object;
+import puma.peputils.Subject;
+import puma.peputils.attributes.EnvironmentAttributeValue;
+import puma.peputils.attributes.ObjectAttributeValue;
+import puma.peputils.attributes.SubjectAttributeValue;
+
+/**
+ * Synthetic warm-up workload that is run through the default PDP at startup,
+ * so that the first real requests do not go through cold, interpreted code
+ * paths.
+ *
+ * The requests are evaluated with ApplicationPEP.decideSynthetic(), so they
+ * do not show up in the decision log, the decision metrics or the decision
+ * cache, and they do not reach the entity database, the central PUMA PDP or
+ * the PDPs of tenants. The connections to the central PUMA PDP are opened
+ * by the connection pools themselves.
+ *
+ * The requests are generated from the values the Targets of the policies
+ * require for the indexed attributes (see PolicyIndex), so that every policy
+ * is evaluated. They are run in rounds until the median latency of a round
+ * differs less than the tolerance from that of the previous round twice in a
+ * row, or until the maximal number of requests or the maximal time is
+ * reached.
+ *
+ * @author Maarten Decat
+ *
+ */
+class WarmUp {
+
+	private static final Logger logger = Logger.getLogger(WarmUp.class
+			.getName());
+
+	/**
+	 * The maximal number of distinct requests generated from the policies.
+	 */
+	private static final int MAX_DISTINCT_REQUESTS = 256;
+
+	/**
+	 * The number of consecutive settled rounds after which the warm-up stops.
+	 */
+	private static final int SETTLED_ROUNDS = 2;
+
+	private final ApplicationPEP pep;
+
+	private final int maxRequests;
+
+	private final long maxTime;
+
+	private final int roundSize;
+
+	private final double tolerance;
+
+	/**
+	 * @param maxRequests
+	 *            The maximal number of requests to run.
+	 * @param maxTime
+	 *            The maximal duration of the warm-up, in milliseconds.
+	 * @param roundSize
+	 *            The number of requests per round.
+	 * @param tolerance
+	 *            The relative difference between the median latency of two
+	 *            rounds below which the latency is considered settled.
+	 */
+	WarmUp(ApplicationPEP pep, int maxRequests, long maxTime, int roundSize,
+			double tolerance) {
+		this.pep = pep;
+		this.maxRequests = maxRequests;
+		this.maxTime = maxTime;
+		this.roundSize = Math.max(1, roundSize);
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Runs the warm-up workload generated from the given values per attribute
+	 * id. Returns the number of requests that were run.
+	 */
+	int run(Map<String, Set<String>> values) {
+		List<AuthorizationRequest> requests = generate(values);
+		long start = System.currentTimeMillis();
+		long previousMedian = -1;
+		int settled = 0;
+		int count = 0;
+		long[] latencies = new long[roundSize];
+		while (count < maxRequests
+				&& System.currentTimeMillis() - start < maxTime) {
+			int n = Math.min(roundSize, maxRequests - count);
+			for (int i = 0; i < n; i++) {
+				AuthorizationRequest request = requests.get((count + i)
+						% requests.size());
+				long begin = System.nanoTime();
+				pep.decideSynthetic(request.getSubject(), request.getObject(),
+						request.getAction(), request.getEnvironment());
+				latencies[i] = System.nanoTime() - begin;
+			}
+			count += n;
+			Arrays.sort(latencies, 0, n);
+			long median = latencies[n / 2];
+			if (previousMedian > 0
+					&& Math.abs(median - previousMedian) <= tolerance
+							* previousMedian) {
+				settled++;
+			} else {
+				settled = 0;
+			}
+			previousMedian = median;
+			if (settled >= SETTLED_ROUNDS) {
+				logger.info("Warm-up settled after " + count
+						+ " requests, median latency " + (median / 1000)
+						+ " us");
+				return count;
+			}
+		}
+		logger.info("Warm-up stopped after " + count
+				+ " requests without settling, median latency "
+				+ (previousMedian / 1000) + " us");
+		return count;
+	}
+
+	/**
+	 * Helper function to generate requests for the combinations of the given
+	 * values per attribute id, including the absence of each attribute. At
+	 * most MAX_DISTINCT_REQUESTS requests are generated.
+	 */
+	static List<AuthorizationRequest> generate(Map<String, Set<String>> values) {
+		List<String> ids = new ArrayList<String>(new TreeSet<String>(
+				values.keySet()));
+		List<List<String>> options = new ArrayList<List<String>>();
+		for (String id : ids) {
+			List<String> option = new ArrayList<String>();
+			// null stands for the absence of the attribute
+			option.add(null);
+			option.addAll(new TreeSet<String>(values.get(id)));
+			options.add(option);
+		}
+		List<AuthorizationRequest> result = new ArrayList<AuthorizationRequest>();
+		int[] position = new int[ids.size()];
+		do {
+			Map<String, String> combination = new HashMap<String, String>();
+			for (int i = 0; i < ids.size(); i++) {
+				String value = options.get(i).get(position[i]);
+				if (value != null) {
+					combination.put(ids.get(i), value);
+				}
+			}
+			result.add(asRequest(combination));
+		} while (result.size() < MAX_DISTINCT_REQUESTS
+				&& next(position, options));
+		return result;
+	}
+
+	/**
+	 * Helper function to advance to the next combination. Returns false if
+	 * there is none.
+	 */
+	private static boolean next(int[] position, List<List<String>> options) {
+		for (int i = position.length - 1; i >= 0; i--) {
+			position[i]++;
+			if (position[i] < options.get(i).size()) {
+				return true;
+			}
+			position[i] = 0;
+		}
+		return false;
+	}
+
+	/**
+	 * Helper function to build a request with the given value per attribute
+	 * id. Ids are of the form "subject:name", "object:name", "action:name"
+	 * or "environment:name", the ids of the subject, object and action are
+	 * "subject:id", "object:id" and "action:id".
+	 */
+	private static AuthorizationRequest asRequest(Map<String, String> values) {
+		Subject subject = new Subject(getOrDefault(values, "subject:id",
+				"warm-up-subject"));
+		Object object = new Object(getOrDefault(values, "object:id",
+				"warm-up-object"));
+		Action action = new Action(getOrDefault(values, "action:id", "read"));
+		Environment environment = new Environment();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String id = entry.getKey();
+			int colon = id.indexOf(':');
+			if (colon < 0 || id.endsWith(":id")) {
+				continue;
+			}
+			String family = id.substring(0, colon);
+			String name = id.substring(colon + 1);
+			if (family.equals("subject")) {
+				subject.addAttributeValue(new SubjectAttributeValue(name,
+						entry.getValue()));
+			} else if (family.equals("object")) {
+				object.addAttributeValue(new ObjectAttributeValue(name, entry
+						.getValue()));
+			} else if (family.equals("environment")) {
+				environment.addAttributeValue(new EnvironmentAttributeValue(
+						name, entry.getValue()));
+			}
+		}
+		return new AuthorizationRequest(subject, object, action, environment);
+	}
+
+	private static String getOrDefault(Map<String, String> values, String id,
+			String defaultValue) {
+		String value = values.get(id);
+		return value == null ? defaultValue : value;
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.decisionlog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Append-only log of all authorization decisions.
+ *
+ * Request threads only put a compact record in a lock-free ring buffer using
+ * log(). A background thread takes the records from the buffer in batches
+ * and appends them to the log file in binary form (see DecisionRecord). When
+ * the log file grows beyond the maximal size, it is rolled over to
+ * file.1, file.2, ... of which at most maxFiles are kept. If the buffer is
+ * full, records are dropped and counted instead of slowing down the caller.
+ * When there is nothing to write, the writer thread parks until the next
+ * record is logged.
+ *
+ * Use DecisionLogReader to turn a log file back into text.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class DecisionLog {
+
+	/**
+	 * Written at the start of every log file.
+	 */
+	static final int MAGIC = 0x50444C31; // "PDL1"
+
+	private static final int BATCH_SIZE = 1024;
+
+	private static final Logger logger = Logger.getLogger(DecisionLog.class
+			.getName());
+
+	private final File file;
+
+	private final long maxFileSize;
+
+	private final int maxFiles;
+
+	private final DecisionRingBuffer buffer;
+
+	private final Counter written;
+
+	private final Counter dropped;
+
+	private final Thread writer;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Whether the writer thread is (about to be) parked because the buffer
+	 * is empty, so that log() has to wake it up.
+	 */
+	private volatile boolean idle = false;
+
+	private DataOutputStream out;
+
+	/**
+	 * The size of the log file when it was opened.
+	 */
+	private long initialFileSize;
+
+	/**
+	 * Creates a new decision log and starts its writer thread.
+	 *
+	 * @param file
+	 *            The log file.
+	 * @param capacity
+	 *            The number of records that fit in the buffer.
+	 * @param maxFileSize
+	 *            The size in bytes after which the log file is rolled over.
+	 * @param maxFiles
+	 *            The number of rolled over log files to keep.
+	 */
+	public DecisionLog(File file, int capacity, long maxFileSize, int maxFiles) {
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		this.buffer = new DecisionRingBuffer(capacity);
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.written = registry.counter(MetricRegistry.name(DecisionLog.class,
+				"written"));
+		this.dropped = registry.counter(MetricRegistry.name(DecisionLog.class,
+				"dropped"));
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "application-pdp-decision-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Logs a decision. Never blocks: if the buffer is full, the decision is
+	 * dropped.
+	 *
+	 * @param latency
+	 *            The time it took to reach the decision, in nanoseconds.
+	 * @param decision
+	 *            See Result.DECISION_X, -1 if no decision could be reached.
+	 */
+	public void log(long latency, int policyVersion, int decision,
+			String subjectId, String objectId, String actionId) {
+		if (!buffer.offer(System.currentTimeMillis(), latency, policyVersion,
+				decision, subjectId, objectId, actionId)) {
+			dropped.inc();
+		} else if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writes all buffered records and stops the writer thread.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The main loop of the writer thread.
+	 */
+	private void writeLoop() {
+		DecisionRingBuffer.Sink sink = new DecisionRingBuffer.Sink() {
+			@Override
+			public void accept(DecisionRecord record) throws IOException {
+				if (out != null) {
+					record.writeTo(out);
+				}
+			}
+		};
+		while (true) {
+			boolean stopping = !running;
+			try {
+				openIfNeeded();
+				int count = 0;
+				while (count < BATCH_SIZE && buffer.poll(sink)) {
+					count++;
+				}
+				if (count > 0) {
+					if (out != null) {
+						written.inc(count);
+						out.flush();
+						rollIfNeeded();
+					} else {
+						dropped.inc(count);
+					}
+				} else if (stopping) {
+					break;
+				} else {
+					// announce that we are going to park before checking the
+					// buffer a last time, so that log() either sees the
+					// announcement or we see its record
+					idle = true;
+					if (buffer.isEmpty() && running) {
+						LockSupport.park(this);
+					}
+					idle = false;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not write to decision log "
+						+ file, e);
+				closeFile();
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+		closeFile();
+	}
+
+	/**
+	 * Helper function to open the log file for appending.
+	 */
+	private void openIfNeeded() throws IOException {
+		if (out != null) {
+			return;
+		}
+		initialFileSize = file.exists() ? file.length() : 0;
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true), 64 * 1024));
+		if (initialFileSize == 0) {
+			out.writeInt(MAGIC);
+		}
+	}
+
+	/**
+	 * Helper function to roll the log file over if it grew too large.
+	 */
+	private void rollIfNeeded() {
+		if (initialFileSize + out.size() < maxFileSize) {
+			return;
+		}
+		closeFile();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File from = new File(file.getPath() + "." + i);
+			File to = new File(file.getPath() + "." + (i + 1));
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		File first = new File(file.getPath() + ".1");
+		first.delete();
+		if (!file.renameTo(first)) {
+			logger.warning("Could not roll over decision log " + file);
+		}
+	}
+
+	/**
+	 * Helper function to close the log file.
+	 */
+	private void closeFile() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close decision log " + file, e);
+		}
+		out = null;
+	}
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.decisionlog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Small command line tool that prints a decision log file as text, one
+ * decision per line.
+ *
+ * Usage: DecisionLogReader file...
+ *
+ * @author Maarten Decat
+ *
+ */
+public class DecisionLogReader {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: DecisionLogReader file...");
+			System.exit(1);
+		}
+		for (String file : args) {
+			print(file, System.out);
+		}
+	}
+
+	/**
+	 * Prints the given decision log file as text to the given stream.
+	 */
+	public static void print(String file, PrintStream out) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != DecisionLog.MAGIC) {
+				throw new IOException(file + " is not a decision log");
+			}
+			DecisionRecord record = new DecisionRecord();
+			while (true) {
+				try {
+					record.readFrom(in);
+				} catch (EOFException e) {
+					// done (possibly with a truncated last record)
+					break;
+				}
+				out.println(format.format(new Date(record.getTimestamp()))
+						+ " (" + record.getSubjectId() + ", "
+						+ record.getObjectId() + ", " + record.getActionId()
+						+ ") " + DecisionRecord.decisionToString(record.getDecision())
+						+ " latency=" + (record.getLatency() / 1000) + "us"
+						+ " policy-version=" + record.getPolicyVersion());
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
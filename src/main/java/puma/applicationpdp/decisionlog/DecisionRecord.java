@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.decisionlog;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.sun.xacml.ctx.Result;
+
+/**
+ * A single entry of the decision log. Records are mutable so that the ring
+ * buffer can reuse them.
+ *
+ * Binary format: timestamp (long, ms since 1970), latency (long, ns), policy
+ * version (int), decision (byte, see Result.DECISION_X, -1 for an error),
+ * subject id, object id and action id (modified UTF-8).
+ *
+ * @author Maarten Decat
+ *
+ */
+public class DecisionRecord {
+
+	long timestamp;
+
+	long latency;
+
+	int policyVersion;
+
+	int decision;
+
+	String subjectId;
+
+	String objectId;
+
+	String actionId;
+
+	void set(long timestamp, long latency, int policyVersion, int decision,
+			String subjectId, String objectId, String actionId) {
+		this.timestamp = timestamp;
+		this.latency = latency;
+		this.policyVersion = policyVersion;
+		this.decision = decision;
+		this.subjectId = subjectId;
+		this.objectId = objectId;
+		this.actionId = actionId;
+	}
+
+	void clear() {
+		this.subjectId = null;
+		this.objectId = null;
+		this.actionId = null;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeLong(timestamp);
+		out.writeLong(latency);
+		out.writeInt(policyVersion);
+		out.writeByte(decision);
+		out.writeUTF(subjectId == null ? "" : subjectId);
+		out.writeUTF(objectId == null ? "" : objectId);
+		out.writeUTF(actionId == null ? "" : actionId);
+	}
+
+	void readFrom(DataInput in) throws IOException {
+		this.timestamp = in.readLong();
+		this.latency = in.readLong();
+		this.policyVersion = in.readInt();
+		this.decision = in.readByte();
+		this.subjectId = in.readUTF();
+		this.objectId = in.readUTF();
+		this.actionId = in.readUTF();
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public int getPolicyVersion() {
+		return policyVersion;
+	}
+
+	public int getDecision() {
+		return decision;
+	}
+
+	public String getSubjectId() {
+		return subjectId;
+	}
+
+	public String getObjectId() {
+		return objectId;
+	}
+
+	public String getActionId() {
+		return actionId;
+	}
+
+	/**
+	 * Returns a human-readable name for the given decision.
+	 */
+	public static String decisionToString(int decision) {
+		switch (decision) {
+		case Result.DECISION_PERMIT:
+			return "Permit";
+		case Result.DECISION_DENY:
+			return "Deny";
+		case Result.DECISION_NOT_APPLICABLE:
+			return "NotApplicable";
+		case Result.DECISION_INDETERMINATE:
+			return "Indeterminate";
+		default:
+			return "Error";
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.decisionlog;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring buffer of decision records for many producers (the
+ * request threads) and a single consumer (the writer thread).
+ *
+ * The records are preallocated and reused: a producer claims a slot, fills in
+ * its record and publishes it by bumping the sequence number of the slot. The
+ * consumer reads a published record and hands the slot back the same way. A
+ * producer never waits: if the buffer is full, offer() returns false.
+ *
+ * @author Maarten Decat
+ *
+ */
+class DecisionRingBuffer {
+
+	private final int mask;
+
+	private final DecisionRecord[] records;
+
+	/**
+	 * Per slot: the position at which the slot can be claimed by a producer
+	 * (position) or read by the consumer (position + 1).
+	 */
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Only accessed by the consumer.
+	 */
+	private long head = 0;
+
+	/**
+	 * @param capacity
+	 *            Rounded up to the next power of two.
+	 */
+	DecisionRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.records = new DecisionRecord[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			records[i] = new DecisionRecord();
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds a record to this buffer. Returns false without waiting if the buffer
+	 * is full.
+	 */
+	boolean offer(long timestamp, long latency, int policyVersion,
+			int decision, String subjectId, String objectId, String actionId) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					records[index].set(timestamp, latency, policyVersion,
+							decision, subjectId, objectId, actionId);
+					// a volatile write, so that a consumer that checks
+					// isEmpty() before it parks cannot miss this record
+					sequences.set(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				// full
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Hands the next published record to the given sink and frees its slot.
+	 * Returns false if there was no published record. Should only be called
+	 * by the single consumer.
+	 */
+	boolean poll(Sink sink) throws IOException {
+		int index = (int) (head & mask);
+		if (sequences.get(index) != head + 1) {
+			return false;
+		}
+		try {
+			sink.accept(records[index]);
+		} finally {
+			records[index].clear();
+			sequences.lazySet(index, head + mask + 1);
+			head++;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether there is no published record to poll. Should only be
+	 * called by the single consumer.
+	 */
+	boolean isEmpty() {
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+
+	/**
+	 * Consumer of the records in this buffer.
+	 */
+	interface Sink {
+		void accept(DecisionRecord record) throws IOException;
+	}
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Metrics of the decisions of the application PDP that are recorded on the
+ * hot path: the latency of isAuthorized() per decision and the number of
+ * evaluations per policy id.
+ *
+ * Recording never takes a lock: latencies go to a HdrHistogram Recorder per
+ * decision, which is wait-free for writers, and counts go to LongAdders. The
+ * recorded latencies are only folded into the cumulative histograms when the
+ * metrics are read, by the JMX reporter or the scrape endpoint.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class DecisionMetrics {
+
+	/**
+	 * The outcomes for which latencies are recorded separately, in the order
+	 * of their index.
+	 */
+	public static final String[] OUTCOMES = { "permit", "deny",
+			"notapplicable", "indeterminate", "error" };
+
+	public static final int PERMIT = 0;
+
+	public static final int DENY = 1;
+
+	public static final int NOT_APPLICABLE = 2;
+
+	public static final int INDETERMINATE = 3;
+
+	public static final int ERROR = 4;
+
+	/**
+	 * The quantiles of the latency that are published.
+	 */
+	public static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+
+	/**
+	 * The number of significant decimal digits of the latency histograms.
+	 */
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	/***********************
+	 * SINGLETON STUFF
+	 ***********************/
+
+	private static final DecisionMetrics instance = new DecisionMetrics();
+
+	public static DecisionMetrics getInstance() {
+		return instance;
+	}
+
+	/***********************
+	 * CONSTRUCTOR
+	 ***********************/
+
+	private final Recorder[] recorders;
+
+	/**
+	 * The latencies recorded so far per outcome, in microseconds. Guarded by
+	 * itself.
+	 */
+	private final Histogram[] latencies;
+
+	private final LongAdder[] counts;
+
+	private final ConcurrentMap<String, LongAdder> evaluations = new ConcurrentHashMap<String, LongAdder>();
+
+	private DecisionMetrics() {
+		this.recorders = new Recorder[OUTCOMES.length];
+		this.latencies = new Histogram[OUTCOMES.length];
+		this.counts = new LongAdder[OUTCOMES.length];
+		for (int i = 0; i < OUTCOMES.length; i++) {
+			this.recorders[i] = new Recorder(SIGNIFICANT_DIGITS);
+			this.latencies[i] = new Histogram(SIGNIFICANT_DIGITS);
+			this.counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records the latency of a decision.
+	 *
+	 * @param outcome
+	 *            One of PERMIT, DENY, NOT_APPLICABLE, INDETERMINATE and ERROR.
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	public void recordDecision(int outcome, long nanos) {
+		counts[outcome].increment();
+		recorders[outcome].recordValue(Math.max(0L,
+				TimeUnit.NANOSECONDS.toMicros(nanos)));
+	}
+
+	/**
+	 * Records an evaluation of the policy with the given id.
+	 */
+	public void recordEvaluation(String policyId) {
+		getEvaluationCount(policyId).increment();
+	}
+
+	/**
+	 * Returns the number of decisions with the given outcome.
+	 */
+	public long getCount(int outcome) {
+		return counts[outcome].sum();
+	}
+
+	/**
+	 * Returns a copy of the latencies of the decisions with the given outcome
+	 * recorded so far, in microseconds.
+	 */
+	public Histogram getLatencies(int outcome) {
+		Histogram latency = latencies[outcome];
+		synchronized (latency) {
+			latency.add(recorders[outcome].getIntervalHistogram());
+			return latency.copy();
+		}
+	}
+
+	/**
+	 * Returns the number of evaluations per policy id, sorted on policy id.
+	 */
+	public Map<String, Long> getEvaluations() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : evaluations.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Publishes these metrics as gauges in the metric registry, so that they
+	 * are also reported over JMX: per outcome the count and the quantiles of
+	 * the latency (in microseconds) and per policy id the number of
+	 * evaluations. Should be called again when other policies are loaded.
+	 * 
+	 * @param policyIds
+	 *            The ids of the policies in use.
+	 */
+	public void publishMetrics(Collection<String> policyIds) {
+		for (String policyId : policyIds) {
+			getEvaluationCount(policyId);
+		}
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		for (int i = 0; i < OUTCOMES.length; i++) {
+			final int outcome = i;
+			register(registry, new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return getCount(outcome);
+				}
+			}, "decisions", OUTCOMES[i], "count");
+			for (final double quantile : QUANTILES) {
+				register(registry, new Gauge<Long>() {
+					@Override
+					public Long getValue() {
+						return getLatencies(outcome).getValueAtPercentile(
+								quantile * 100);
+					}
+				}, "decisions", OUTCOMES[i], "latency", getName(quantile));
+			}
+			register(registry, new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return getLatencies(outcome).getMaxValue();
+				}
+			}, "decisions", OUTCOMES[i], "latency", "max");
+		}
+		for (final String policyId : evaluations.keySet()) {
+			register(registry, new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return evaluations.get(policyId).sum();
+				}
+			}, "evaluations", policyId);
+		}
+	}
+
+	/**
+	 * Helper function to get the number of evaluations of the policy with the
+	 * given id.
+	 */
+	private LongAdder getEvaluationCount(String policyId) {
+		LongAdder count = evaluations.get(policyId);
+		if (count == null) {
+			LongAdder newCount = new LongAdder();
+			count = evaluations.putIfAbsent(policyId, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Helper function to name a quantile like Codahale does: p50, p99, p999.
+	 */
+	static String getName(double quantile) {
+		String digits = Double.toString(quantile).substring(2);
+		if (digits.length() == 1) {
+			digits += "0";
+		}
+		return "p" + digits;
+	}
+
+	/**
+	 * Helper function to (re-)register a gauge.
+	 */
+	private static void register(MetricRegistry registry, Gauge<?> gauge,
+			String... names) {
+		String name = MetricRegistry.name(DecisionMetrics.class, names);
+		registry.remove(name);
+		registry.register(name, gauge);
+	}
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.HdrHistogram.Histogram;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint that serves all metrics in the Prometheus text
+ * format on /metrics.
+ *
+ * Counters and gauges of the metric registry are served as untyped samples,
+ * timers (in seconds) and histograms as summaries. The latencies of the
+ * decisions are served as one summary with an outcome label, the
+ * evaluations per policy id as one counter with a policy label (see
+ * DecisionMetrics).
+ *
+ * The endpoint runs on a single daemon thread and only reads the metrics, so
+ * scraping does not slow down isAuthorized().
+ *
+ * @author Maarten Decat
+ *
+ */
+public class PrometheusEndpoint {
+
+	private static final Logger logger = Logger
+			.getLogger(PrometheusEndpoint.class.getName());
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS
+			.toNanos(1);
+
+	private static final double SECONDS_PER_MICRO = 1.0 / TimeUnit.SECONDS
+			.toMicros(1);
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Starts serving the metrics on the given host and port.
+	 *
+	 * @param host
+	 *            The host to bind to, null to bind to all interfaces.
+	 * @throws IOException
+	 *             If the port could not be bound.
+	 */
+	public PrometheusEndpoint(String host, int port) throws IOException {
+		InetSocketAddress address = host == null ? new InetSocketAddress(port)
+				: new InetSocketAddress(host, port);
+		this.server = HttpServer.create(address, 0);
+		this.executor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "application-pdp-metrics-endpoint");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.server.setExecutor(executor);
+		this.server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type",
+							CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Could not serve the metrics", e);
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		this.server.start();
+		logger.info("Serving metrics on " + server.getAddress() + "/metrics");
+	}
+
+	/**
+	 * Stops serving the metrics.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns all metrics in the Prometheus text format.
+	 */
+	public static String scrape() {
+		StringBuilder out = new StringBuilder();
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		for (Map.Entry<String, Counter> entry : registry.getCounters()
+				.entrySet()) {
+			String name = sanitize(entry.getKey());
+			type(out, name, "untyped");
+			sample(out, name, "", entry.getValue().getCount());
+		}
+		for (@SuppressWarnings("rawtypes")
+		Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+			Object value;
+			try {
+				value = entry.getValue().getValue();
+			} catch (RuntimeException e) {
+				continue;
+			}
+			double number;
+			if (value instanceof Number) {
+				number = ((Number) value).doubleValue();
+			} else if (value instanceof Boolean) {
+				number = ((Boolean) value) ? 1 : 0;
+			} else {
+				continue;
+			}
+			String name = sanitize(entry.getKey());
+			type(out, name, "untyped");
+			sample(out, name, "", number);
+		}
+		for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+			String name = sanitize(entry.getKey()) + "_total";
+			type(out, name, "counter");
+			sample(out, name, "", entry.getValue().getCount());
+		}
+		for (Map.Entry<String, Timer> entry : registry.getTimers().entrySet()) {
+			summary(out, sanitize(entry.getKey()) + "_seconds",
+					entry.getValue(), entry.getValue().getCount(),
+					SECONDS_PER_NANO);
+		}
+		for (Map.Entry<String, com.codahale.metrics.Histogram> entry : registry
+				.getHistograms().entrySet()) {
+			summary(out, sanitize(entry.getKey()), entry.getValue(), entry
+					.getValue().getCount(), 1);
+		}
+		// the latencies of the decisions, per outcome
+		DecisionMetrics decisionMetrics = DecisionMetrics.getInstance();
+		String name = "puma_applicationpdp_decision_latency_seconds";
+		type(out, name, "summary");
+		for (int i = 0; i < DecisionMetrics.OUTCOMES.length; i++) {
+			Histogram latencies = decisionMetrics.getLatencies(i);
+			String outcome = "outcome=\"" + DecisionMetrics.OUTCOMES[i] + "\"";
+			for (double quantile : DecisionMetrics.QUANTILES) {
+				sample(out, name, "{" + outcome + ",quantile=\"" + quantile
+						+ "\"}",
+						latencies.getValueAtPercentile(quantile * 100)
+								* SECONDS_PER_MICRO);
+			}
+			sample(out, name + "_sum", "{" + outcome + "}",
+					latencies.getMean() * latencies.getTotalCount()
+							* SECONDS_PER_MICRO);
+			sample(out, name + "_count", "{" + outcome + "}",
+					latencies.getTotalCount());
+		}
+		// the evaluations, per policy id
+		name = "puma_applicationpdp_policy_evaluations_total";
+		type(out, name, "counter");
+		for (Map.Entry<String, Long> entry : decisionMetrics.getEvaluations()
+				.entrySet()) {
+			sample(out, name, "{policy=\"" + escape(entry.getKey()) + "\"}",
+					entry.getValue());
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Helper function to write a summary of the given sampling metric.
+	 */
+	private static void summary(StringBuilder out, String name,
+			Sampling sampling, long count, double scale) {
+		Snapshot snapshot = sampling.getSnapshot();
+		type(out, name, "summary");
+		for (double quantile : DecisionMetrics.QUANTILES) {
+			sample(out, name, "{quantile=\"" + quantile + "\"}",
+					snapshot.getValue(quantile) * scale);
+		}
+		sample(out, name + "_count", "", count);
+	}
+
+	private static void type(StringBuilder out, String name, String type) {
+		out.append("# TYPE ").append(name).append(' ').append(type)
+				.append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels,
+			double value) {
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Helper function to turn a metric name into a valid Prometheus name.
+	 */
+	static String sanitize(String name) {
+		StringBuilder result = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+					|| (c >= '0' && c <= '9' && i > 0)) {
+				result.append(c);
+			} else {
+				result.append('_');
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Helper function to escape a label value.
+	 */
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
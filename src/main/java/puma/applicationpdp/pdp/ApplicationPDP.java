@@ -19,37 +19,50 @@
  ******************************************************************************/
 package puma.applicationpdp.pdp;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 import mdc.xacml.impl.DefaultAttributeCounter;
 import mdc.xacml.impl.HardcodedEnvironmentAttributeModule;
 import mdc.xacml.impl.SimplePolicyFinderModule;
 import oasis.names.tc.xacml._2_0.context.schema.os.RequestType;
-import puma.piputils.EntityDatabase;
-import puma.piputils.QueryAttributeFinderModule;
+import puma.applicationpdp.metrics.DecisionMetrics;
+import puma.util.timing.TimerFactory;
 
+import org.apache.commons.io.IOUtils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import com.sun.xacml.AbstractPolicy;
 import com.sun.xacml.BasicEvaluationCtx;
+import com.sun.xacml.EvaluationCtx;
 import com.sun.xacml.PDP;
 import com.sun.xacml.PDPConfig;
 import com.sun.xacml.ParsingException;
 import com.sun.xacml.ctx.CachedAttribute;
 import com.sun.xacml.ctx.ResponseCtx;
+import com.sun.xacml.ctx.Result;
 import com.sun.xacml.finder.AttributeFinder;
 import com.sun.xacml.finder.AttributeFinderModule;
 import com.sun.xacml.finder.PolicyFinder;
 import com.sun.xacml.finder.PolicyFinderModule;
 import com.sun.xacml.remote.RemotePolicyEvaluator;
 import com.sun.xacml.remote.RemotePolicyEvaluatorModule;
-import com.sun.xacml.support.finder.PolicyReader;
 
 /**
  * Class used for evaluating one of multiple policies, based on their id.
@@ -65,7 +78,99 @@ public class ApplicationPDP {
 	private static final Logger logger = Logger.getLogger(ApplicationPDP.class
 			.getName());
 
-	private PDP pdp;
+	/**
+	 * The ids of the attributes on which the Targets of the policies are
+	 * indexed, see PolicyIndex.
+	 */
+	private static final String INDEXED_ATTRIBUTES = System.getProperty(
+			"puma.applicationpdp.index.attributes",
+			"action:id,object:type,subject:tenant");
+
+	/**
+	 * One PDP per policy, in the same order as the policy ids. Null if the
+	 * policies could not be loaded.
+	 */
+	private List<PDP> pdps;
+
+	private List<String> policyIds;
+
+	private PolicyIndex index;
+
+	private AttributeFinder attributeFinder;
+
+	private RemotePolicyEvaluator remotePolicyEvaluator;
+
+	/**
+	 * The attribute finder and remote policy evaluator for synthetic
+	 * requests, see evaluateSynthetic(): without the entity database and
+	 * without the central PUMA PDP.
+	 */
+	private AttributeFinder syntheticAttributeFinder;
+
+	private RemotePolicyEvaluator syntheticRemotePolicyEvaluator;
+
+	/**
+	 * Whether attributes can be fetched from the entity database, see
+	 * EntityAttributeFinderModule.
+	 */
+	private boolean allowRemoteAccess;
+
+	/**
+	 * Per policy, the attribute designators in it, see AttributePrefetcher.
+	 */
+	private List<Set<AttributePrefetcher.Designator>> designators;
+
+	private final Counter indexNotApplicable;
+
+	private final Histogram indexCandidates;
+
+	/**
+	 * Per policy, the number of remote policy references in it. The
+	 * references of the evaluated policies are counted, see
+	 * publishMetrics().
+	 */
+	private int[] remoteReferences;
+
+	/**
+	 * The remote references in the evaluated policies.
+	 */
+	private final Counter remoteReferencesCounter;
+
+	/**
+	 * The remote references whose Target matched, i.e., that were handed to
+	 * the module for the central PUMA policy.
+	 */
+	private final Counter remoteEvaluations;
+
+	private final RemotePolicyEvaluatorModule centralPUMAPDPModule;
+
+	/**
+	 * Whether this PDP created or retained the module for the central PUMA
+	 * policy, and should release it when it is closed.
+	 */
+	private final boolean ownsCentralPUMAPDPModule;
+
+	/**
+	 * The maximal time to wait for in-flight requests when closing this PDP,
+	 * in milliseconds.
+	 */
+	private static final long DRAIN_TIMEOUT = Long.getLong(
+			"puma.applicationpdp.reload.draintimeout", 30000L);
+
+	/**
+	 * The number of requests that are being evaluated by this PDP.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Sets the directory in which the compiled policies of all PDPs are
+	 * stored as snapshots, so that PDPs built later, also after a restart, do
+	 * not parse the XML of unchanged policies again (see PolicyCache). Pass
+	 * null to not use snapshots.
+	 */
+	public static void setPolicySnapshotDirectory(File directory) {
+		PolicyCache.getInstance().setSnapshotDirectory(directory);
+	}
 
 	/**
 	 * Initialize this MultiPolicyPDP with given collection of input streams
@@ -73,6 +178,103 @@ public class ApplicationPDP {
 	 */
 	public ApplicationPDP(InputStream applicationPolicyStream,
 			Boolean allowRemoteAccess) {
+		this(applicationPolicyStream, allowRemoteAccess,
+				(CentralPUMAPolicyReplica) null);
+	}
+
+	/**
+	 * Initialize this MultiPolicyPDP with given collection of input streams
+	 * pointing to XACML policies (XML files) and a local copy of the central
+	 * PUMA policy, which is evaluated locally whenever possible.
+	 * 
+	 * @param centralPUMAPolicyReplica
+	 *            May be null, in which case the central PUMA policy is always
+	 *            evaluated by the central PUMA PDP.
+	 */
+	public ApplicationPDP(InputStream applicationPolicyStream,
+			Boolean allowRemoteAccess,
+			CentralPUMAPolicyReplica centralPUMAPolicyReplica) {
+		this(applicationPolicyStream, Collections.<InputStream> emptyList(),
+				allowRemoteAccess, centralPUMAPolicyReplica);
+	}
+
+	/**
+	 * Initialize this MultiPolicyPDP with given collection of input streams
+	 * pointing to XACML policies (XML files) and the given module for
+	 * evaluating the central PUMA policy, for example a stub for benchmarks.
+	 */
+	public ApplicationPDP(InputStream applicationPolicyStream,
+			Boolean allowRemoteAccess,
+			RemotePolicyEvaluatorModule centralPUMAPDPModule) {
+		this(applicationPolicyStream, Collections.<InputStream> emptyList(),
+				allowRemoteAccess, centralPUMAPDPModule);
+	}
+
+	/**
+	 * Initialize this MultiPolicyPDP with the application policy, any number
+	 * of additional application policies (each with its own id) and a local
+	 * copy of the central PUMA policy, which is evaluated locally whenever
+	 * possible.
+	 * 
+	 * @param centralPUMAPolicyReplica
+	 *            May be null, in which case the central PUMA policy is always
+	 *            evaluated by the central PUMA PDP.
+	 */
+	public ApplicationPDP(InputStream applicationPolicyStream,
+			List<InputStream> additionalPolicyStreams,
+			Boolean allowRemoteAccess,
+			CentralPUMAPolicyReplica centralPUMAPolicyReplica) {
+		this(applicationPolicyStream, additionalPolicyStreams,
+				allowRemoteAccess, new CentralPUMAThriftPolicyEvaluatorModule(
+						centralPUMAPolicyReplica), true);
+	}
+
+	/**
+	 * Initialize this MultiPolicyPDP with the application policy, any number
+	 * of additional application policies (each with its own id) and the given
+	 * module for evaluating the central PUMA policy.
+	 * 
+	 * Each request is only evaluated against the policies whose Target can
+	 * match it according to the PolicyIndex. If several policies apply, their
+	 * results are combined with deny-overrides.
+	 * 
+	 * The given module can be shared with other PDPs, for example those of
+	 * other tenants: it is not closed when this PDP is closed.
+	 */
+	public ApplicationPDP(InputStream applicationPolicyStream,
+			List<InputStream> additionalPolicyStreams,
+			Boolean allowRemoteAccess,
+			RemotePolicyEvaluatorModule centralPUMAPDPModule) {
+		this(applicationPolicyStream, additionalPolicyStreams,
+				allowRemoteAccess, centralPUMAPDPModule, false);
+	}
+
+	/**
+	 * Initialize this MultiPolicyPDP with the application policy, any number
+	 * of additional application policies (each with its own id) and the given
+	 * module for evaluating the central PUMA policy.
+	 * 
+	 * @param ownsCentralPUMAPDPModule
+	 *            Whether the given module should be released when this PDP is
+	 *            closed, for example because it was obtained with
+	 *            retainCentralPUMAPDPModule().
+	 */
+	public ApplicationPDP(InputStream applicationPolicyStream,
+			List<InputStream> additionalPolicyStreams,
+			Boolean allowRemoteAccess,
+			RemotePolicyEvaluatorModule centralPUMAPDPModule,
+			boolean ownsCentralPUMAPDPModule) {
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.indexNotApplicable = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "index.notapplicable"));
+		this.indexCandidates = registry.histogram(MetricRegistry.name(
+				ApplicationPDP.class, "index.candidates"));
+		this.remoteReferencesCounter = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "remote.references"));
+		this.remoteEvaluations = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "remote.evaluations"));
+
 		// Now setup the attribute finder
 		// 1. current date/time
 		HardcodedEnvironmentAttributeModule envAttributeModule = new HardcodedEnvironmentAttributeModule();
@@ -87,7 +289,8 @@ public class ApplicationPDP {
 		attributeModules.add(envAttributeModule);
 		if (allowRemoteAccess) {
 			logger.info("Adding query attribute finder...");
-			attributeModules.add(new QueryAttributeFinderModule());
+			// shared by all PDPs, see EntityAttributeFinderModule
+			attributeModules.add(EntityAttributeFinderModule.getInstance());
 		}
 		// attributeModules.add(selectorAttributeModule);
 		// attributeModules.add(localAttributeFinderModule);
@@ -98,52 +301,258 @@ public class ApplicationPDP {
 		Set<RemotePolicyEvaluatorModule> remotePolicyEvaluatorModules = new HashSet<RemotePolicyEvaluatorModule>();
 //		remotePolicyEvaluatorModules
 //				.add(new CentralPUMAPolicyEvaluatorModule());
-		remotePolicyEvaluatorModules
-				.add(new CentralPUMAThriftPolicyEvaluatorModule());
+		this.centralPUMAPDPModule = centralPUMAPDPModule;
+		this.ownsCentralPUMAPDPModule = ownsCentralPUMAPDPModule;
+		remotePolicyEvaluatorModules.add(new CountingRemotePolicyEvaluatorModule(
+				this.centralPUMAPDPModule, this.remoteEvaluations));
 		remotePolicyEvaluator.setModules(remotePolicyEvaluatorModules);
 
-		// build the PDP
-		PolicyReader reader = new PolicyReader(null);
-		AbstractPolicy policy;
-		try {
-			policy = reader.readPolicy(applicationPolicyStream);
-		} catch (ParsingException e) {
-			logger.log(Level.SEVERE, "Error when parsing application policy", e);
-			return;
+		// and the ones for synthetic requests
+		AttributeFinder syntheticAttributeFinder = new AttributeFinder();
+		List<AttributeFinderModule> syntheticAttributeModules = new ArrayList<AttributeFinderModule>();
+		syntheticAttributeModules.add(envAttributeModule);
+		syntheticAttributeFinder.setModules(syntheticAttributeModules);
+		RemotePolicyEvaluator syntheticRemotePolicyEvaluator = new RemotePolicyEvaluator();
+		Set<RemotePolicyEvaluatorModule> syntheticRemotePolicyEvaluatorModules = new HashSet<RemotePolicyEvaluatorModule>();
+		syntheticRemotePolicyEvaluatorModules
+				.add(new NotApplicableRemotePolicyEvaluatorModule(
+						this.centralPUMAPDPModule));
+		syntheticRemotePolicyEvaluator
+				.setModules(syntheticRemotePolicyEvaluatorModules);
+
+		// read the policies
+		List<InputStream> policyStreams = new ArrayList<InputStream>();
+		policyStreams.add(applicationPolicyStream);
+		policyStreams.addAll(additionalPolicyStreams);
+		List<String> indexedAttributes = Arrays.asList(INDEXED_ATTRIBUTES
+				.split(","));
+		List<AbstractPolicy> policies = new ArrayList<AbstractPolicy>();
+		List<Map<String, Set<String>>> requiredValues = new ArrayList<Map<String, Set<String>>>();
+		List<String> policyIds = new ArrayList<String>();
+		List<Set<AttributePrefetcher.Designator>> designators = new ArrayList<Set<AttributePrefetcher.Designator>>();
+		List<Integer> remoteReferences = new ArrayList<Integer>();
+		for (InputStream policyStream : policyStreams) {
+			AbstractPolicy policy;
+			try {
+				// compiled policies are shared between PDPs built from the
+				// same XML, see PolicyCache
+				PolicyCache.CompiledPolicy compiled = PolicyCache
+						.getInstance().compile(
+								IOUtils.toByteArray(policyStream),
+								indexedAttributes);
+				remoteReferences.add(compiled.getRemoteReferences());
+				requiredValues.add(compiled.getRequiredValues());
+				designators.add(compiled.getDesignators());
+				policy = compiled.getPolicy();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Error when reading application policy", e);
+				return;
+			} catch (ParsingException e) {
+				logger.log(Level.SEVERE, "Error when parsing application policy", e);
+				return;
+			}
+			String id = policy.getId().toString();
+			if (policyIds.isEmpty() && !id.equals(APPLICATION_POLICY_ID)) {
+				logger.severe("The id of the given policy should be \""
+						+ APPLICATION_POLICY_ID + "\". Given id: \""
+						+ id + "\".");
+				return;
+			}
+			if (policyIds.contains(id)) {
+				logger.severe("Duplicate application policy id: \"" + id + "\".");
+				return;
+			}
+			policyIds.add(id);
+			policies.add(policy);
 		}
-		if (!policy.getId().toString().equals(APPLICATION_POLICY_ID)) {
-			logger.severe("The id of the given policy should be \""
-					+ APPLICATION_POLICY_ID + "\". Given id: \""
-					+ policy.getId().toString() + "\".");
-			return;
+
+		// construct a PDP with a policy finder per policy
+		List<PDP> pdps = new ArrayList<PDP>(policies.size());
+		for (AbstractPolicy policy : policies) {
+			PolicyFinder policyFinder = new PolicyFinder();
+			SimplePolicyFinderModule simplePolicyFinderModule = new SimplePolicyFinderModule(
+					policy);
+			Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
+			policyModules.add(simplePolicyFinderModule);
+			policyFinder.setModules(policyModules);
+			pdps.add(new PDP(new PDPConfig(attributeFinder, policyFinder,
+					null, remotePolicyEvaluator, new DefaultAttributeCounter())));
+		}
+		this.attributeFinder = attributeFinder;
+		this.remotePolicyEvaluator = remotePolicyEvaluator;
+		this.syntheticAttributeFinder = syntheticAttributeFinder;
+		this.syntheticRemotePolicyEvaluator = syntheticRemotePolicyEvaluator;
+		this.policyIds = Collections.unmodifiableList(policyIds);
+		this.index = new PolicyIndex(requiredValues, indexedAttributes);
+		this.remoteReferences = new int[remoteReferences.size()];
+		for (int i = 0; i < this.remoteReferences.length; i++) {
+			this.remoteReferences[i] = remoteReferences.get(i);
+		}
+		this.allowRemoteAccess = allowRemoteAccess;
+		this.designators = designators;
+		this.pdps = pdps;
+		EntityAttributeFinderModule.getInstance().open();
+	}
+
+	/**
+	 * Returns whether the policy was loaded succesfully, i.e., whether this
+	 * PDP can evaluate requests.
+	 */
+	public boolean isOperational() {
+		return this.pdps != null;
+	}
+
+	/**
+	 * Publishes the metrics of this PDP, replacing those of any previous PDP.
+	 * Should be called when this PDP is put in use.
+	 */
+	public void publishMetrics() {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.publishMetrics();
+		}
+		DecisionMetrics.getInstance().publishMetrics(this.policyIds);
+		// the remote references in the evaluated policies that did not lead
+		// to a call to the central PUMA PDP, either because their Target did
+		// not match, because the local copy of the central PUMA policy
+		// decided or because they shared the call of an identical request.
+		// Only the Thrift module knows its calls.
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		String gaugeName = MetricRegistry.name(ApplicationPDP.class,
+				"remote.avoided");
+		registry.remove(gaugeName);
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			final CentralPUMAThriftPolicyEvaluatorModule module = (CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule;
+			registry.register(gaugeName, new Gauge<Long>() {
+				@Override
+				public Long getValue() {
+					return remoteReferencesCounter.getCount()
+							- module.getRemoteCallCount();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes the connections of this PDP to the central PUMA PDP, unless the
+	 * module for the central PUMA policy was given to this PDP. Should be
+	 * called when this PDP is replaced. Waits (for at most DRAIN_TIMEOUT) for
+	 * the requests that are still being evaluated by this PDP to finish.
+	 */
+	public void close() {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (inFlight.get() > 0) {
+			logger.warning("Closing application PDP with " + inFlight.get()
+					+ " requests still in flight");
+		}
+		if (this.ownsCentralPUMAPDPModule
+				&& this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.release();
 		}
+	}
 
-		// construct the policy finder for the single policy
-		PolicyFinder policyFinder = new PolicyFinder();
-		SimplePolicyFinderModule simplePolicyFinderModule = new SimplePolicyFinderModule(
-				policy);
-		Set<PolicyFinderModule> policyModules = new HashSet<PolicyFinderModule>();
-		policyModules.add(simplePolicyFinderModule);
-		policyFinder.setModules(policyModules);
-		this.pdp = new PDP(new PDPConfig(attributeFinder, policyFinder, null,
-				remotePolicyEvaluator, new DefaultAttributeCounter()));
-		EntityDatabase.getInstance().open(true);
+	/**
+	 * Returns per indexed attribute id the values the Targets of the policies
+	 * of this PDP require, see PolicyIndex.
+	 */
+	public Map<String, Set<String>> getIndexedValues() {
+		return this.index.getValues();
+	}
+
+	/**
+	 * Returns the module this PDP uses for evaluating the central PUMA
+	 * policy, so that other PDPs can share it.
+	 */
+	public RemotePolicyEvaluatorModule getCentralPUMAPDPModule() {
+		return this.centralPUMAPDPModule;
+	}
+
+	/**
+	 * Returns the module this PDP uses for evaluating the central PUMA
+	 * policy, registering the caller as a user so that the module stays open
+	 * until the caller releases it (see
+	 * CentralPUMAThriftPolicyEvaluatorModule.retain()), also when this PDP is
+	 * closed before. Returns null if the module was closed already.
+	 */
+	public RemotePolicyEvaluatorModule retainCentralPUMAPDPModule() {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule
+				&& !((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+						.retain()) {
+			return null;
+		}
+		return this.centralPUMAPDPModule;
+	}
+
+	/**
+	 * Returns the state of the circuit to the central PUMA PDP, or null if
+	 * this PDP does not use the Thrift connection to the central PUMA PDP.
+	 */
+	public CentralPUMAPDPCircuitBreaker.State getCentralPUMAPDPCircuitState() {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			return ((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.getCircuitState();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the attributes the central PUMA policy can reference, so that only
+	 * those are sent to the central PUMA PDP. Null to send all attributes.
+	 */
+	public void setAttributeProjection(AttributeProjection projection) {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.setAttributeProjection(projection);
+		}
+	}
+
+	/**
+	 * Sets the version of the central PUMA policy the central PUMA PDP
+	 * serves, null if unknown. The attribute projection is only used if it
+	 * is for this version.
+	 */
+	public void setCentralPUMAPolicyVersion(String version) {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.setCentralPolicyVersion(version);
+		}
+	}
+
+	/**
+	 * Returns the number of fallback decisions used instead of decisions of
+	 * the central PUMA PDP so far. Decisions reached while this number
+	 * changes should not be cached.
+	 */
+	public long getFallbackCount() {
+		if (this.centralPUMAPDPModule instanceof CentralPUMAThriftPolicyEvaluatorModule) {
+			return ((CentralPUMAThriftPolicyEvaluatorModule) this.centralPUMAPDPModule)
+					.getFallbackCount();
+		}
+		return 0;
 	}
 
 	/**
 	 * Returns the list of supported policy ids.
 	 */
 	public List<String> getSupportedPolicyIds() {
-		List<String> result = new ArrayList<String>();
-		result.add(APPLICATION_POLICY_ID);
-		return result;
+		return new ArrayList<String>(this.policyIds);
 	}
 
 	/**
 	 * Evaluate a request and return the result.
 	 */
 	public ResponseCtx evaluate(RequestType request) {
-		return evaluate(request, new LinkedList<CachedAttribute>());
+		return evaluate(request, Collections.<CachedAttribute> emptyList());
 	}
 
 	/**
@@ -151,40 +560,269 @@ public class ApplicationPDP {
 	 */
 	public ResponseCtx evaluate(RequestType request,
 			List<CachedAttribute> cachedAttributes) {
+		return evaluate(request, cachedAttributes, Deadline.NONE);
+	}
+
+	/**
+	 * Evaluate a request and return the result. Remote evaluations needed for
+	 * the request are cut off at the given deadline (see Deadline), in which
+	 * case the fallback decision of the remote module is used.
+	 */
+	public ResponseCtx evaluate(RequestType request,
+			List<CachedAttribute> cachedAttributes, long deadline) {
 		// Only setup log item if supported,
 		// else noop
-		if (logAll()) {
-			String log = "Received policy request for Application-level PDP. Cached attributes:\n";
+		if (logger.isLoggable(Level.FINEST)) {
+			StringBuilder log = new StringBuilder(
+					"Received policy request for Application-level PDP. Cached attributes:\n");
 			for (CachedAttribute a : cachedAttributes) {
-				log += a.getId() + " = " + a.getValue().toString() + "\n";
+				log.append(a.getId()).append(" = ")
+						.append(a.getValue().toString()).append("\n");
 			}
-			logger.info(log);
+			logger.finest(log.toString());
 		}
 
-		// if supported, evaluate the appropriate policy
-		BasicEvaluationCtx ctx;
+		// only evaluate the policies whose Target can match the request
+		BitSet candidates = this.index.getCandidates(cachedAttributes);
+		this.indexCandidates.update(candidates.cardinality());
+		if (candidates.isEmpty()) {
+			this.indexNotApplicable.inc();
+			return new ResponseCtx(new Result(Result.DECISION_NOT_APPLICABLE));
+		}
+
+		inFlight.incrementAndGet();
+		Deadline.set(deadline);
+		if (this.allowRemoteAccess) {
+			EntityAttributeFinderModule.startEvaluation(cachedAttributes);
+		}
 		try {
-			ctx = new BasicEvaluationCtx(request,
-					this.pdp.getAttributeFinder(),
-					this.pdp.getRemotePolicyEvaluator(),
-					new DefaultAttributeCounter());
-		} catch (ParsingException e) {
-			logger.log(Level.SEVERE, "Parsing exception here??", e);
-			return null;
+			BasicEvaluationCtx ctx;
+			try {
+				ctx = newEvaluationCtx(request, cachedAttributes);
+			} catch (ParsingException e) {
+				logger.log(Level.SEVERE, "Parsing exception here??", e);
+				return null;
+			}
+			// fetch the database attributes the candidates can need in
+			// parallel instead of one by one during the evaluation
+			if (this.allowRemoteAccess && AttributePrefetcher.ENABLED) {
+				ctx.addAttributesToCache(prefetch(request, cachedAttributes,
+						candidates));
+			}
+			// evaluate the candidates, combining their results with
+			// deny-overrides
+			ResponseCtx result = null;
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates
+					.nextSetBit(i + 1)) {
+				this.remoteReferencesCounter.inc(this.remoteReferences[i]);
+				ResponseCtx response = this.pdps.get(i).evaluate(ctx);
+				DecisionMetrics.getInstance().recordEvaluation(
+						this.policyIds.get(i));
+				if (result == null
+						|| rank(getDecision(response)) > rank(getDecision(result))) {
+					result = response;
+				}
+				if (getDecision(result) == Result.DECISION_DENY) {
+					break;
+				}
+			}
+			return result;
+		} finally {
+			if (this.allowRemoteAccess) {
+				EntityAttributeFinderModule.endEvaluation();
+			}
+			Deadline.clear();
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Evaluate a synthetic request, for example of a warm-up workload, and
+	 * return the result. The request goes through the same evaluation code
+	 * as a real one, but has no effects outside this PDP: no attributes are
+	 * fetched from the entity database, remote policy references evaluate to
+	 * NotApplicable instead of going to the central PUMA PDP and no metrics
+	 * are recorded.
+	 */
+	public ResponseCtx evaluateSynthetic(RequestType request,
+			List<CachedAttribute> cachedAttributes) {
+		BitSet candidates = this.index.getCandidates(cachedAttributes);
+		if (candidates.isEmpty()) {
+			return new ResponseCtx(new Result(Result.DECISION_NOT_APPLICABLE));
 		}
-		// add the given cached attributes
+		inFlight.incrementAndGet();
+		try {
+			BasicEvaluationCtx ctx;
+			try {
+				ctx = new BasicEvaluationCtx(request,
+						this.syntheticAttributeFinder,
+						this.syntheticRemotePolicyEvaluator,
+						new DefaultAttributeCounter());
+			} catch (ParsingException e) {
+				logger.log(Level.SEVERE, "Parsing exception here??", e);
+				return null;
+			}
+			ctx.addAttributesToCache(cachedAttributes);
+			ResponseCtx result = null;
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates
+					.nextSetBit(i + 1)) {
+				ResponseCtx response = this.pdps.get(i).evaluate(ctx);
+				if (result == null
+						|| rank(getDecision(response)) > rank(getDecision(result))) {
+					result = response;
+				}
+				if (getDecision(result) == Result.DECISION_DENY) {
+					break;
+				}
+			}
+			return result;
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Helper function to set up the evaluation context of a request with the
+	 * given cached attributes.
+	 */
+	private BasicEvaluationCtx newEvaluationCtx(RequestType request,
+			List<CachedAttribute> cachedAttributes) throws ParsingException {
+		BasicEvaluationCtx ctx = new BasicEvaluationCtx(request,
+				this.attributeFinder, this.remotePolicyEvaluator,
+				new DefaultAttributeCounter());
 		ctx.addAttributesToCache(cachedAttributes);
-		// evaluate
-		ResponseCtx response = this.pdp.evaluate(ctx);
-		return response;
-	}
-
-	private static Boolean logAll() {
-		if (LogManager.getLogManager().getLogger("") == null)
-			return false;
-		if (LogManager.getLogManager().getLogger("").getLevel() == null)
-			return false;
-		return !LogManager.getLogManager().getLogger("").getLevel()
-				.equals(Level.WARNING);
+		return ctx;
+	}
+
+	/**
+	 * Helper function to prefetch the database attributes referenced by the
+	 * given candidate policies, see AttributePrefetcher.
+	 */
+	private List<CachedAttribute> prefetch(final RequestType request,
+			final List<CachedAttribute> cachedAttributes, BitSet candidates) {
+		Set<AttributePrefetcher.Designator> designators = new HashSet<AttributePrefetcher.Designator>();
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates
+				.nextSetBit(i + 1)) {
+			designators.addAll(this.designators.get(i));
+		}
+		return AttributePrefetcher.getInstance().prefetch(designators,
+				cachedAttributes, new AttributePrefetcher.ContextFactory() {
+					@Override
+					public EvaluationCtx newContext() throws ParsingException {
+						return newEvaluationCtx(request, cachedAttributes);
+					}
+				});
+	}
+
+	/**
+	 * Helper function to get the decision of a response for a single request.
+	 */
+	private static int getDecision(ResponseCtx response) {
+		return ((Result) response.getResults().iterator().next())
+				.getDecision();
+	}
+
+	/**
+	 * Helper function to rank decisions for deny-overrides: Deny overrides
+	 * Indeterminate, which overrides Permit, which overrides NotApplicable.
+	 */
+	private static int rank(int decision) {
+		switch (decision) {
+		case Result.DECISION_DENY:
+			return 3;
+		case Result.DECISION_INDETERMINATE:
+			return 2;
+		case Result.DECISION_PERMIT:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Remote policy evaluator module that supports the same references as the
+	 * module it wraps, but evaluates all of them to NotApplicable without
+	 * calling it, see evaluateSynthetic().
+	 */
+	private static class NotApplicableRemotePolicyEvaluatorModule extends
+			RemotePolicyEvaluatorModule {
+
+		private final RemotePolicyEvaluatorModule module;
+
+		public NotApplicableRemotePolicyEvaluatorModule(
+				RemotePolicyEvaluatorModule module) {
+			this.module = module;
+		}
+
+		@Override
+		public boolean isRequestSupported() {
+			return module.isRequestSupported();
+		}
+
+		@Override
+		public boolean isIdReferenceSupported() {
+			return module.isIdReferenceSupported();
+		}
+
+		@Override
+		public boolean supportsId(URI id) {
+			return module.supportsId(id);
+		}
+
+		@Override
+		public Result findAndEvaluate(EvaluationCtx context) {
+			return new Result(Result.DECISION_NOT_APPLICABLE);
+		}
+
+		@Override
+		public Result findAndEvaluate(URI id, EvaluationCtx context) {
+			return new Result(Result.DECISION_NOT_APPLICABLE);
+		}
+	}
+
+	/**
+	 * Remote policy evaluator module that counts the evaluations handed to the
+	 * module it wraps. These are not necessarily calls to the central PUMA
+	 * PDP: the module can answer them locally.
+	 */
+	private static class CountingRemotePolicyEvaluatorModule extends
+			RemotePolicyEvaluatorModule {
+
+		private final RemotePolicyEvaluatorModule module;
+
+		private final Counter evaluations;
+
+		public CountingRemotePolicyEvaluatorModule(
+				RemotePolicyEvaluatorModule module, Counter evaluations) {
+			this.module = module;
+			this.evaluations = evaluations;
+		}
+
+		@Override
+		public boolean isRequestSupported() {
+			return module.isRequestSupported();
+		}
+
+		@Override
+		public boolean isIdReferenceSupported() {
+			return module.isIdReferenceSupported();
+		}
+
+		@Override
+		public boolean supportsId(URI id) {
+			return module.supportsId(id);
+		}
+
+		@Override
+		public Result findAndEvaluate(EvaluationCtx context) {
+			evaluations.inc();
+			return module.findAndEvaluate(context);
+		}
+
+		@Override
+		public Result findAndEvaluate(URI id, EvaluationCtx context) {
+			evaluations.inc();
+			return module.findAndEvaluate(id, context);
+		}
 	}
 }
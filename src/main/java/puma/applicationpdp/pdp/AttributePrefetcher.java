@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.ParsingException;
+import com.sun.xacml.attr.AttributeDesignator;
+import com.sun.xacml.attr.BagAttribute;
+import com.sun.xacml.cond.EvaluationResult;
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * Fetches the database attributes a request will need before the request is
+ * evaluated.
+ *
+ * Without prefetching, the XACML engine asks for missing attributes one by
+ * one while it walks the policy tree, so every attribute costs a sequential
+ * round trip to the entity database. The designators the policies can
+ * reference are known statically (see getDesignators()), so before the
+ * evaluation starts, the designators of the subject, the object and the
+ * action that are not in the request are fetched in parallel, one task per
+ * entity, and the results are added to the cached attributes of the
+ * evaluation context.
+ *
+ * Like PolicyAnalysis, this is conservative: attributes are fetched that the
+ * evaluation may not need in the end. The fetched attributes end up in the
+ * attribute cache of the EntityAttributeFinderModule as well, so this mainly
+ * costs database queries for entities that are not cached yet. The
+ * prefetching stops at the deadline of the evaluation, attributes that were
+ * not fetched by then are simply fetched on demand.
+ *
+ * A cached attribute only has an id and a data type, so designators with an
+ * issuer or with another subject category than the default one are not
+ * prefetched: as a cached attribute, their values would also match the
+ * designators without that issuer or category.
+ *
+ * @author Maarten Decat
+ *
+ */
+class AttributePrefetcher {
+
+	private static final Logger logger = Logger
+			.getLogger(AttributePrefetcher.class.getName());
+
+	/**
+	 * Whether to prefetch attributes at all.
+	 */
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+			"puma.applicationpdp.attributes.prefetch", "true"));
+
+	/**
+	 * The number of threads to fetch attributes with, shared by all PDPs.
+	 */
+	private static final int THREADS = Integer.getInteger(
+			"puma.applicationpdp.attributes.prefetch.threads", 8);
+
+	private static final String DEFAULT_SUBJECT_CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+
+	/**
+	 * Creates a new evaluation context for the request that is being
+	 * prefetched for. Every task gets its own context, since the evaluation
+	 * context is not thread-safe.
+	 */
+	interface ContextFactory {
+		EvaluationCtx newContext() throws ParsingException;
+	}
+
+	/***********************
+	 * SINGLETON STUFF
+	 ***********************/
+
+	private static final AttributePrefetcher instance = new AttributePrefetcher();
+
+	static AttributePrefetcher getInstance() {
+		return instance;
+	}
+
+	/***********************
+	 * CONSTRUCTOR
+	 ***********************/
+
+	private final ExecutorService executor;
+
+	private final Counter prefetched;
+
+	private final Counter timeouts;
+
+	private final Timer timer;
+
+	private AttributePrefetcher() {
+		this.executor = Executors.newFixedThreadPool(THREADS,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "attribute-prefetcher-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.prefetched = registry.counter(MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.prefetched"));
+		this.timeouts = registry.counter(MetricRegistry.name(
+				EntityAttributeFinderModule.class,
+				"attributes.prefetch.timeouts"));
+		this.timer = registry.timer(MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.prefetch"));
+	}
+
+	/**
+	 * Fetches the given designators that are not among the given cached
+	 * attributes for the evaluation on the current thread and returns the
+	 * attributes found. Should be called after
+	 * EntityAttributeFinderModule.startEvaluation().
+	 */
+	List<CachedAttribute> prefetch(Collection<Designator> designators,
+			List<CachedAttribute> cachedAttributes,
+			final ContextFactory contextFactory) {
+		final EntityAttributeFinderModule.Evaluation evaluation = EntityAttributeFinderModule
+				.currentEvaluation();
+		if (evaluation == null) {
+			return new ArrayList<CachedAttribute>();
+		}
+		// group the missing designators per entity
+		Set<String> present = new HashSet<String>();
+		for (CachedAttribute ca : cachedAttributes) {
+			present.add(ca.getId() + "|" + ca.getType());
+		}
+		Map<Integer, List<Designator>> missing = new LinkedHashMap<Integer, List<Designator>>();
+		for (Designator designator : designators) {
+			if (!designator.isCacheable()
+					|| present.contains(designator.getId() + "|"
+							+ designator.getDataType())
+					|| evaluation.getEntity(designator.getType()) == null) {
+				continue;
+			}
+			List<Designator> entityDesignators = missing.get(designator
+					.getType());
+			if (entityDesignators == null) {
+				entityDesignators = new ArrayList<Designator>();
+				missing.put(designator.getType(), entityDesignators);
+			}
+			entityDesignators.add(designator);
+		}
+		List<CachedAttribute> result = new ArrayList<CachedAttribute>();
+		if (missing.isEmpty()) {
+			return result;
+		}
+
+		Timer.Context timerCtx = this.timer.time();
+		// the deadline is kept per thread, so pass it on to the tasks
+		final long deadline = Deadline.get();
+		try {
+			// fetch the attributes of one entity on this thread, those of the
+			// other entities in parallel
+			List<Future<List<CachedAttribute>>> futures = new ArrayList<Future<List<CachedAttribute>>>();
+			List<List<Designator>> groups = new ArrayList<List<Designator>>(
+					missing.values());
+			for (final List<Designator> group : groups.subList(1,
+					groups.size())) {
+				futures.add(this.executor
+						.submit(new Callable<List<CachedAttribute>>() {
+							@Override
+							public List<CachedAttribute> call()
+									throws ParsingException {
+								Deadline.set(deadline);
+								try {
+									return fetch(group,
+											contextFactory.newContext(),
+											evaluation);
+								} finally {
+									Deadline.clear();
+								}
+							}
+						}));
+			}
+			try {
+				result.addAll(fetch(groups.get(0),
+						contextFactory.newContext(), evaluation));
+			} catch (ParsingException e) {
+				logger.log(Level.WARNING, "Could not prefetch attributes", e);
+			}
+			for (Future<List<CachedAttribute>> future : futures) {
+				try {
+					long remaining = Deadline.remainingMillis();
+					if (remaining == Long.MAX_VALUE) {
+						result.addAll(future.get());
+					} else {
+						result.addAll(future.get(remaining,
+								TimeUnit.MILLISECONDS));
+					}
+				} catch (TimeoutException e) {
+					// fetched on demand if needed after all. Do not interrupt
+					// the task: that could break the database connection it
+					// is using
+					future.cancel(false);
+					this.timeouts.inc();
+				} catch (ExecutionException e) {
+					logger.log(Level.WARNING, "Could not prefetch attributes",
+							e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			timerCtx.stop();
+		}
+		this.prefetched.inc(result.size());
+		return result;
+	}
+
+	/**
+	 * Helper function to fetch the given designators of a single entity.
+	 * Attributes that are not found are left out, they are then looked up
+	 * again on demand, which hits the attribute cache.
+	 */
+	private static List<CachedAttribute> fetch(List<Designator> designators,
+			EvaluationCtx ctx, EntityAttributeFinderModule.Evaluation evaluation) {
+		List<CachedAttribute> result = new ArrayList<CachedAttribute>();
+		EntityAttributeFinderModule module = EntityAttributeFinderModule
+				.getInstance();
+		for (Designator designator : designators) {
+			if (Deadline.remainingMillis() == 0) {
+				break;
+			}
+			EvaluationResult found = module.findAttribute(
+					designator.getDataType(), designator.getId(),
+					designator.getIssuer(), designator.getCategory(), ctx,
+					designator.getType(), evaluation);
+			if (found.indeterminate()) {
+				continue;
+			}
+			BagAttribute bag = (BagAttribute) found.getAttributeValue();
+			if (!bag.isEmpty()) {
+				result.add(new CachedAttribute(designator.getDataType()
+						.toString(), designator.getId().toString(), bag));
+			}
+		}
+		return result;
+	}
+
+	/***********************
+	 * STATIC ANALYSIS
+	 ***********************/
+
+	/**
+	 * Returns the subject, resource and action attribute designators in the
+	 * given policy (set) element. Environment attributes are not fetched from
+	 * the entity database.
+	 */
+	static Set<Designator> getDesignators(Element policy) {
+		Set<Designator> result = new HashSet<Designator>();
+		collect(policy, result);
+		return result;
+	}
+
+	/**
+	 * Helper function to walk the DOM tree.
+	 */
+	private static void collect(Element element, Set<Designator> designators) {
+		String name = element.getLocalName();
+		if (name == null) {
+			name = element.getTagName();
+		}
+		int type = -1;
+		if (name.equals("SubjectAttributeDesignator")) {
+			type = AttributeDesignator.SUBJECT_TARGET;
+		} else if (name.equals("ResourceAttributeDesignator")) {
+			type = AttributeDesignator.RESOURCE_TARGET;
+		} else if (name.equals("ActionAttributeDesignator")) {
+			type = AttributeDesignator.ACTION_TARGET;
+		}
+		if (type >= 0) {
+			String category = null;
+			if (type == AttributeDesignator.SUBJECT_TARGET) {
+				category = element.getAttribute("SubjectCategory");
+				if (category.isEmpty()) {
+					category = DEFAULT_SUBJECT_CATEGORY;
+				}
+			}
+			String issuer = element.getAttribute("Issuer");
+			try {
+				designators.add(new Designator(type, URI.create(element
+						.getAttribute("AttributeId")), URI.create(element
+						.getAttribute("DataType")), issuer.isEmpty() ? null
+						: URI.create(issuer), category == null ? null : URI
+						.create(category)));
+			} catch (IllegalArgumentException e) {
+				// invalid designator, left to the policy reader to complain
+			}
+		}
+		NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				collect((Element) child, designators);
+			}
+		}
+	}
+
+	/**
+	 * An attribute designator: the attribute to look up and where to look.
+	 */
+	static class Designator {
+
+		private final int type;
+
+		private final URI id;
+
+		private final URI dataType;
+
+		private final URI issuer;
+
+		private final URI category;
+
+		Designator(int type, URI id, URI dataType, URI issuer, URI category) {
+			this.type = type;
+			this.id = id;
+			this.dataType = dataType;
+			this.issuer = issuer;
+			this.category = category;
+		}
+
+		/**
+		 * Returns the designator type, see AttributeDesignator.
+		 */
+		int getType() {
+			return type;
+		}
+
+		URI getId() {
+			return id;
+		}
+
+		URI getDataType() {
+			return dataType;
+		}
+
+		URI getIssuer() {
+			return issuer;
+		}
+
+		URI getCategory() {
+			return category;
+		}
+
+		/**
+		 * Returns whether the values of this designator can be added to the
+		 * cached attributes of a request without also matching other
+		 * designators with the same id: it has no issuer and, for a subject
+		 * designator, the default subject category.
+		 */
+		boolean isCacheable() {
+			return issuer == null
+					&& (category == null || category.toString().equals(
+							DEFAULT_SUBJECT_CATEGORY));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Designator)) {
+				return false;
+			}
+			Designator other = (Designator) o;
+			return type == other.type && id.equals(other.id)
+					&& dataType.equals(other.dataType)
+					&& equal(issuer, other.issuer)
+					&& equal(category, other.category);
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * type + id.hashCode()) * 31 + dataType.hashCode();
+		}
+
+		private static boolean equal(URI a, URI b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * The set of attributes a version of the central PUMA policy can reference,
+ * used to only send those attributes to the central PUMA PDP.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class AttributeProjection {
+
+	private final Set<String> attributeIds;
+
+	private final String version;
+
+	public AttributeProjection(Set<String> attributeIds, String version) {
+		this.attributeIds = Collections.unmodifiableSet(new HashSet<String>(
+				attributeIds));
+		this.version = version;
+	}
+
+	/**
+	 * Returns the projection for the given analysis of the central PUMA
+	 * policy, or null if the attributes the policy can reference are not
+	 * known statically, i.e., if the policy references other policies or uses
+	 * selectors.
+	 */
+	public static AttributeProjection of(PolicyAnalysis analysis,
+			String version) {
+		if (analysis.referencesPolicies() || analysis.usesSelectors()) {
+			return null;
+		}
+		return new AttributeProjection(analysis.getAttributeIds(), version);
+	}
+
+	public Set<String> getAttributeIds() {
+		return attributeIds;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns whether this projection was determined for the given version of
+	 * the central PUMA policy. A projection without a version is never
+	 * considered to be for a known version, and no projection is for an
+	 * unknown (null) version.
+	 */
+	public boolean isFor(String centralPolicyVersion) {
+		return version != null && version.equals(centralPolicyVersion);
+	}
+
+	/**
+	 * Returns the given attributes which the policy can reference, in the
+	 * same order.
+	 */
+	public List<CachedAttribute> project(
+			Collection<CachedAttribute> cachedAttributes) {
+		List<CachedAttribute> result = new ArrayList<CachedAttribute>(
+				Math.min(cachedAttributes.size(), attributeIds.size()));
+		for (CachedAttribute ca : cachedAttributes) {
+			if (attributeIds.contains(ca.getId())) {
+				result.add(ca);
+			}
+		}
+		return result;
+	}
+}
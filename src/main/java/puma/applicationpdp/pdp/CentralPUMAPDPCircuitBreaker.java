@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Circuit breaker for the connection to a central PUMA PDP replica. While the
+ * circuit is not closed, the replica is ejected from load balancing.
+ *
+ * CLOSED: all requests are sent to the central PUMA PDP. After
+ * failureThreshold consecutive failures, the circuit opens.
+ *
+ * OPEN: no requests are sent, callers fail fast with the fallback decision.
+ * In the background, a probe checks every probeInterval milliseconds whether
+ * the central PUMA PDP can be reached again. If so, the circuit goes half
+ * open.
+ *
+ * HALF_OPEN: at most halfOpenTrials requests are sent as a trial. The first
+ * success closes the circuit, a failure opens it again. If none of the
+ * trials has an outcome within probeInterval milliseconds, for example
+ * because they ran out of time before being sent, the circuit opens again
+ * so that probing resumes.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPDPCircuitBreaker {
+
+	public enum State {
+		CLOSED, HALF_OPEN, OPEN
+	}
+
+	/**
+	 * Background check whether the central PUMA PDP can be reached again.
+	 */
+	public interface Probe {
+		boolean probe();
+	}
+
+	private static final Logger logger = Logger
+			.getLogger(CentralPUMAPDPCircuitBreaker.class.getName());
+
+	private final String name;
+
+	private final int failureThreshold;
+
+	private final long probeInterval;
+
+	private final int halfOpenTrials;
+
+	private final Probe probe;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.CLOSED);
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	private final AtomicInteger trials = new AtomicInteger();
+
+	private volatile long halfOpenSince;
+
+	private final ScheduledExecutorService prober;
+
+	private final Counter opened;
+
+	private final Counter rejected;
+
+	/**
+	 * @param name
+	 *            The name of the central PUMA PDP replica, used in the logs
+	 *            and the metric names.
+	 */
+	public CentralPUMAPDPCircuitBreaker(String name, int failureThreshold,
+			long probeInterval, int halfOpenTrials, Probe probe) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.probeInterval = probeInterval;
+		this.halfOpenTrials = halfOpenTrials;
+		this.probe = probe;
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.opened = registry.counter(MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", name, "circuit.opened"));
+		this.rejected = registry.counter(MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", name, "circuit.rejected"));
+		this.prober = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "central-puma-pdp-prober-" + name);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.prober.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probeOrReopen();
+			}
+		}, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns whether a request may be sent to the central PUMA PDP. If not,
+	 * the caller should use the fallback decision.
+	 */
+	public boolean allowRequest() {
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case HALF_OPEN:
+			if (trials.incrementAndGet() <= halfOpenTrials) {
+				return true;
+			}
+			rejected.inc();
+			return false;
+		default:
+			rejected.inc();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether the circuit is half open and a trial request may be
+	 * sent. Unlike allowRequest(), a refusal does not count as a rejected
+	 * request, since the caller can send the request elsewhere.
+	 */
+	public boolean allowTrial() {
+		return state.get() == State.HALF_OPEN
+				&& trials.incrementAndGet() <= halfOpenTrials;
+	}
+
+	/**
+	 * Should be called after every successful remote call.
+	 */
+	public void onSuccess() {
+		consecutiveFailures.set(0);
+		if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+			logger.info("The central PUMA PDP at " + name
+					+ " is reachable again, circuit CLOSED");
+		}
+	}
+
+	/**
+	 * Should be called after every failed remote call. Returns whether this
+	 * failure opened the circuit.
+	 */
+	public boolean onFailure() {
+		if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+			opened.inc();
+			logger.warning("Trial request to the central PUMA PDP at " + name
+					+ " failed, circuit OPEN again");
+			return true;
+		}
+		if (consecutiveFailures.incrementAndGet() >= failureThreshold
+				&& state.compareAndSet(State.CLOSED, State.OPEN)) {
+			opened.inc();
+			logger.warning("The central PUMA PDP at " + name + " failed "
+					+ failureThreshold + " times in a row, circuit OPEN");
+			return true;
+		}
+		return false;
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Publishes the state of this circuit breaker (0 = closed, 1 = half open,
+	 * 2 = open), replacing that of any previous circuit breaker.
+	 */
+	public void publishMetrics() {
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		String gaugeName = MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", name, "circuit.state");
+		registry.remove(gaugeName);
+		registry.register(gaugeName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return state.get().ordinal();
+			}
+		});
+	}
+
+	/**
+	 * Stops the background probing.
+	 */
+	public void close() {
+		prober.shutdownNow();
+	}
+
+	/**
+	 * Helper function to probe the central PUMA PDP when the circuit is open
+	 * and to open a circuit that has been half open for too long.
+	 */
+	private void probeOrReopen() {
+		State current = state.get();
+		if (current == State.HALF_OPEN
+				&& System.currentTimeMillis() - halfOpenSince > probeInterval
+				&& state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+			logger.fine("No outcome of the trial requests to the central PUMA PDP at "
+					+ name + ", circuit OPEN again");
+			return;
+		}
+		if (current != State.OPEN) {
+			return;
+		}
+		boolean reachable;
+		try {
+			reachable = probe.probe();
+		} catch (RuntimeException e) {
+			logger.log(Level.FINE, "Probe of the central PUMA PDP at " + name
+					+ " failed", e);
+			reachable = false;
+		}
+		if (reachable) {
+			trials.set(0);
+			halfOpenSince = System.currentTimeMillis();
+			if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+				logger.info("The central PUMA PDP at " + name
+						+ " can be reached, circuit HALF OPEN");
+			}
+		}
+	}
+}
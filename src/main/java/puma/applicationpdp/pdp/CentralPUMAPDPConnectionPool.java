@@ -0,0 +1,435 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import puma.thrift.pdp.RemotePDPService;
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Bounded pool of Thrift clients to the central PUMA PDP.
+ *
+ * A Thrift client is not thread-safe, so every remote evaluation checks out a
+ * client with borrow() and hands it back with release() or invalidate(). At
+ * most maxSize clients exist at the same time, callers wait at most
+ * maxWait milliseconds for one to become available. Idle clients are checked
+ * before they are handed out and clients that were idle for longer than
+ * idleTimeout milliseconds are closed in the background, while keeping at
+ * least minSize of them open.
+ *
+ * Setting up a connection takes at most connectTimeout milliseconds and a
+ * remote call waits at most readTimeout milliseconds for a response, unless
+ * a shorter timeout is set for the call with PooledClient.setTimeout().
+ *
+ * By default, clients use TBinaryProtocol on an unframed socket, which every
+ * central PUMA PDP understands. Clients of a compact pool use TCompactProtocol
+ * on a framed transport instead, which only works with central PUMA PDPs that
+ * serve that combination.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPDPConnectionPool {
+
+	private static final String WAIT_TIMER_NAME = "remotepdp.pool.wait";
+
+	private static final Logger logger = Logger
+			.getLogger(CentralPUMAPDPConnectionPool.class.getName());
+
+	private final String host;
+
+	private final int port;
+
+	private final int minSize;
+
+	private final int maxSize;
+
+	private final long maxWait;
+
+	private final long idleTimeout;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	private final boolean compact;
+
+	/**
+	 * The idle clients, most recently used first.
+	 */
+	private final LinkedBlockingDeque<PooledClient> idle = new LinkedBlockingDeque<PooledClient>();
+
+	/**
+	 * One permit per client that can still be checked out.
+	 */
+	private final Semaphore permits;
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * The connections set up after filling the pool, to replace clients that
+	 * were closed because they were broken or idle for too long.
+	 */
+	private final Counter reconnects;
+
+	private final ScheduledExecutorService evictor;
+
+	private volatile boolean closed = false;
+
+	public CentralPUMAPDPConnectionPool(String host, int port, int minSize,
+			int maxSize, long maxWait, long idleTimeout, int connectTimeout,
+			int readTimeout, boolean compact) {
+		this.host = host;
+		this.port = port;
+		this.minSize = Math.min(minSize, maxSize);
+		this.maxSize = maxSize;
+		this.maxWait = maxWait;
+		this.idleTimeout = idleTimeout;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.compact = compact;
+		this.permits = new Semaphore(maxSize, true);
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.reconnects = registry.counter(MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", host + ":" + port, "pool.reconnects"));
+		this.evictor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "central-puma-pdp-pool-evictor");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleClients();
+			}
+		}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+		// pre-fill the pool, failing to do so is not fatal
+		for (int i = 0; i < this.minSize; i++) {
+			try {
+				idle.offerLast(createClient());
+			} catch (TTransportException e) {
+				logger.log(Level.WARNING,
+						"FAILED to reach the central PUMA PDP when filling the connection pool: "
+								+ e.getMessage());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks out a client. The client should be given back using release() if
+	 * it can be reused or using invalidate() if it cannot.
+	 *
+	 * @throws CentralPUMAPDPLocalTimeoutException
+	 *             If no client became available in time.
+	 * @throws TTransportException
+	 *             If a new connection could not be set up.
+	 */
+	public PooledClient borrow() throws TTransportException {
+		return borrow(maxWait);
+	}
+
+	/**
+	 * Checks out a client, waiting at most the given number of milliseconds
+	 * (and never longer than maxWait) for one to become available.
+	 *
+	 * @throws CentralPUMAPDPLocalTimeoutException
+	 *             If no client became available in time.
+	 * @throws TTransportException
+	 *             If a new connection could not be set up.
+	 */
+	public PooledClient borrow(long timeout) throws TTransportException {
+		Timer.Context timerCtx = TimerFactory.getInstance()
+				.getTimer(CentralPUMAThriftPolicyEvaluatorModule.class,
+						WAIT_TIMER_NAME).time();
+		try {
+			if (!permits.tryAcquire(Math.min(timeout, maxWait),
+					TimeUnit.MILLISECONDS)) {
+				throw new CentralPUMAPDPLocalTimeoutException(
+						"Timed out waiting for a connection to the central PUMA PDP");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TTransportException(TTransportException.UNKNOWN,
+					"Interrupted while waiting for a connection to the central PUMA PDP");
+		} finally {
+			timerCtx.stop();
+		}
+		try {
+			PooledClient client;
+			while ((client = idle.pollFirst()) != null) {
+				if (client.isHealthy(System.currentTimeMillis(), idleTimeout)) {
+					active.incrementAndGet();
+					return client;
+				}
+				client.close();
+			}
+			client = createClient();
+			reconnects.inc();
+			active.incrementAndGet();
+			return client;
+		} catch (TTransportException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a client that can be reused.
+	 */
+	public void release(PooledClient client) {
+		active.decrementAndGet();
+		client.lastUsed = System.currentTimeMillis();
+		if (closed) {
+			client.close();
+		} else {
+			idle.offerFirst(client);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Gives back a client that should not be reused, for example because it
+	 * threw an exception. Only this client is closed, the other clients in the
+	 * pool are not affected.
+	 */
+	public void invalidate(PooledClient client) {
+		active.decrementAndGet();
+		client.close();
+		permits.release();
+	}
+
+	/**
+	 * Checks whether a new connection to the central PUMA PDP can be set up.
+	 * The connection is closed again immediately and does not count towards
+	 * the size of the pool.
+	 */
+	public boolean probe() {
+		TTransport transport = new TSocket(host, port, connectTimeout);
+		try {
+			transport.open();
+			return true;
+		} catch (TTransportException e) {
+			return false;
+		} finally {
+			transport.close();
+		}
+	}
+
+	/**
+	 * Closes all idle clients, for example because the central PUMA PDP went
+	 * down and they are probably broken. Checked out clients are not affected.
+	 */
+	public void clearIdle() {
+		PooledClient client;
+		while ((client = idle.pollFirst()) != null) {
+			client.close();
+		}
+	}
+
+	/**
+	 * Closes all idle clients and stops the background eviction. Clients that
+	 * are checked out at this moment are closed when they are given back.
+	 * Requests that still reach this pool afterwards get a fresh connection
+	 * which is closed again when it is given back.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		clearIdle();
+	}
+
+	/**
+	 * Helper function to close the clients that have been idle for too long.
+	 * The least recently used clients are at the end of the deque.
+	 */
+	private void evictIdleClients() {
+		long now = System.currentTimeMillis();
+		Iterator<PooledClient> it = idle.descendingIterator();
+		while (it.hasNext() && idle.size() > minSize) {
+			PooledClient client = it.next();
+			if (!client.isHealthy(now, idleTimeout) && idle.remove(client)) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Helper function to set up a new connection to the central PUMA PDP.
+	 */
+	private PooledClient createClient() throws TTransportException {
+		// the timeout of a TSocket applies to both connecting and reading
+		TSocket socket = new TSocket(host, port, connectTimeout);
+		socket.open();
+		socket.setTimeout(readTimeout);
+		CountingTransport transport = new CountingTransport(socket);
+		TProtocol protocol;
+		if (compact) {
+			protocol = new TCompactProtocol(new TFramedTransport(transport));
+		} else {
+			protocol = new TBinaryProtocol(transport);
+		}
+		logger.info("Set up Thrift client to Central PUMA PDP");
+		return new PooledClient(socket, transport,
+				new RemotePDPService.Client(protocol), readTimeout);
+	}
+
+	/**
+	 * Publishes the utilisation of this pool, replacing the gauges of any
+	 * previous pool to the same host and port. Should only be called for the
+	 * pool that is in use.
+	 */
+	public void publishMetrics() {
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		register(registry, "pool.active", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return active.get();
+			}
+		});
+		register(registry, "pool.idle", new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return idle.size();
+			}
+		});
+		register(registry, "pool.utilisation", new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return ((double) active.get()) / maxSize;
+			}
+		});
+	}
+
+	/**
+	 * Helper function to (re-)register a gauge.
+	 */
+	private void register(MetricRegistry registry, String name, Gauge<?> gauge) {
+		String fullName = MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", host + ":" + port, name);
+		registry.remove(fullName);
+		registry.register(fullName, gauge);
+	}
+
+	/**
+	 * A Thrift client together with its transport.
+	 */
+	public static class PooledClient {
+
+		private final TSocket transport;
+
+		private final CountingTransport counter;
+
+		private final RemotePDPService.Client client;
+
+		private final int readTimeout;
+
+		private long lastUsed;
+
+		private PooledClient(TSocket transport, CountingTransport counter,
+				RemotePDPService.Client client, int readTimeout) {
+			this.transport = transport;
+			this.counter = counter;
+			this.client = client;
+			this.readTimeout = readTimeout;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public RemotePDPService.Client getClient() {
+			return client;
+		}
+
+		/**
+		 * Sets the time to wait for the response of the next call, in
+		 * milliseconds. The read timeout of the pool is never exceeded.
+		 * Returns whether the given timeout, rather than the read timeout of
+		 * the pool, bounds the call.
+		 */
+		public boolean setTimeout(long timeout) {
+			int effective = readTimeout;
+			boolean bounded = false;
+			if (timeout < effective || effective <= 0) {
+				effective = (int) Math.max(1L,
+						Math.min(timeout, Integer.MAX_VALUE));
+				bounded = true;
+			}
+			transport.setTimeout(effective);
+			return bounded;
+		}
+
+		/**
+		 * Returns the number of bytes sent and received on the wire since the
+		 * last call to resetCounts().
+		 */
+		public long getBytesSent() {
+			return counter.getBytesWritten();
+		}
+
+		public long getBytesReceived() {
+			return counter.getBytesRead();
+		}
+
+		public void resetCounts() {
+			counter.resetCounts();
+		}
+
+		private boolean isHealthy(long now, long idleTimeout) {
+			return transport.isOpen() && now - lastUsed < idleTimeout;
+		}
+
+		private void close() {
+			transport.close();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import puma.thrift.pdp.AttributeValueP;
+import puma.thrift.pdp.ResponseTypeP;
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A single central PUMA PDP replica: its connection pool, its circuit breaker
+ * and the statistics used for load balancing (the number of outstanding
+ * requests and the exponentially weighted moving average of the latency).
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPDPEndpoint {
+
+	/**
+	 * The weight of the latest latency in the moving average.
+	 */
+	private static final double EWMA_ALPHA = 0.3;
+
+	private static final Logger logger = Logger
+			.getLogger(CentralPUMAPDPEndpoint.class.getName());
+
+	private final String name;
+
+	private final CentralPUMAPDPConnectionPool pool;
+
+	private final CentralPUMAPDPCircuitBreaker circuitBreaker;
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * The moving average of the latency, in milliseconds.
+	 */
+	private volatile double latency = 0.0;
+
+	private final Timer latencyTimer;
+
+	private final Counter requests;
+
+	private final Counter failures;
+
+	private final Counter localTimeouts;
+
+	private final Histogram bytesSent;
+
+	private final Histogram bytesReceived;
+
+	public CentralPUMAPDPEndpoint(String host, int port, int poolMinSize,
+			int poolMaxSize, long poolMaxWait, long poolIdleTimeout,
+			int connectTimeout, int readTimeout, boolean compact,
+			int failureThreshold, long probeInterval, int halfOpenTrials) {
+		this.name = host + ":" + port;
+		this.pool = new CentralPUMAPDPConnectionPool(host, port, poolMinSize,
+				poolMaxSize, poolMaxWait, poolIdleTimeout, connectTimeout,
+				readTimeout, compact);
+		this.circuitBreaker = new CentralPUMAPDPCircuitBreaker(name,
+				failureThreshold, probeInterval, halfOpenTrials,
+				new CentralPUMAPDPCircuitBreaker.Probe() {
+					@Override
+					public boolean probe() {
+						return pool.probe();
+					}
+				});
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.latencyTimer = registry.timer(metricName("latency"));
+		this.requests = registry.counter(metricName("requests"));
+		this.failures = registry.counter(metricName("failures"));
+		this.localTimeouts = registry.counter(metricName("timeouts.local"));
+		// the size of the messages is reported over all replicas
+		this.bytesSent = registry.histogram(MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.request.bytes"));
+		this.bytesReceived = registry.histogram(MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.response.bytes"));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public CentralPUMAPDPCircuitBreaker.State getState() {
+		return circuitBreaker.getState();
+	}
+
+	/**
+	 * Returns whether a request may be sent to this replica, see
+	 * CentralPUMAPDPCircuitBreaker.allowRequest().
+	 */
+	public boolean allowRequest() {
+		return circuitBreaker.allowRequest();
+	}
+
+	/**
+	 * Returns whether this replica may get a trial request, see
+	 * CentralPUMAPDPCircuitBreaker.allowTrial().
+	 */
+	public boolean allowTrial() {
+		return circuitBreaker.allowTrial();
+	}
+
+	/**
+	 * Returns the expected cost of sending one more request to this replica:
+	 * the number of requests that would be outstanding times the average
+	 * latency.
+	 */
+	public double getCost() {
+		return (outstanding.get() + 1) * Math.max(latency, 0.1);
+	}
+
+	/**
+	 * Asks this replica for a response using a client from its pool. Waits at
+	 * most until the deadline of the current evaluation (see Deadline).
+	 */
+	public ResponseTypeP evaluate(List<AttributeValueP> cachedAttributes)
+			throws TException {
+		return evaluate(cachedAttributes, true);
+	}
+
+	/**
+	 * Asks this replica for a response using a client from its pool. Waits at
+	 * most until the deadline of the current evaluation (see Deadline).
+	 * 
+	 * Only failures of the replica itself count for its circuit breaker: a
+	 * call given up locally (CentralPUMAPDPLocalTimeoutException) never does,
+	 * and a failure does not either if countFailure is false, e.g., because
+	 * it is a retry of a request that already failed on this replica.
+	 */
+	public ResponseTypeP evaluate(List<AttributeValueP> cachedAttributes,
+			boolean countFailure) throws TException {
+		requests.inc();
+		outstanding.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			ResponseTypeP response = evaluateWithPool(cachedAttributes);
+			circuitBreaker.onSuccess();
+			return response;
+		} catch (CentralPUMAPDPLocalTimeoutException e) {
+			localTimeouts.inc();
+			throw e;
+		} catch (TException e) {
+			failures.inc();
+			if (countFailure && circuitBreaker.onFailure()) {
+				logger.log(Level.WARNING, "Circuit to the central PUMA PDP at "
+						+ name + " opened, last failure:", e);
+				pool.clearIdle();
+			}
+			throw e;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			outstanding.decrementAndGet();
+			latencyTimer.update(elapsed, TimeUnit.NANOSECONDS);
+			// races between concurrent updates only lose a sample
+			latency = EWMA_ALPHA * (elapsed / 1000000.0) + (1 - EWMA_ALPHA)
+					* latency;
+		}
+	}
+
+	/**
+	 * Publishes the metrics of this replica, replacing those of any previous
+	 * endpoint for the same replica.
+	 */
+	public void publishMetrics() {
+		pool.publishMetrics();
+		circuitBreaker.publishMetrics();
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		String outstandingName = metricName("outstanding");
+		registry.remove(outstandingName);
+		registry.register(outstandingName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return outstanding.get();
+			}
+		});
+		String ewmaName = metricName("latency-ewma");
+		registry.remove(ewmaName);
+		registry.register(ewmaName, new Gauge<Double>() {
+			@Override
+			public Double getValue() {
+				return latency;
+			}
+		});
+	}
+
+	/**
+	 * Closes the connections to this replica.
+	 */
+	public void close() {
+		circuitBreaker.close();
+		pool.close();
+	}
+
+	/**
+	 * Helper function to perform a single remote call using a client from the
+	 * pool. A client that fails is closed. If the connection itself failed
+	 * (other than by timing out), the idle clients are closed as well: the
+	 * replica probably went down or restarted, in which case their sockets
+	 * are dead too although they still look open, and a retry on this
+	 * replica should set up a fresh connection. A call that timed out on the
+	 * deadline of the evaluation rather than on the read timeout of the pool
+	 * is reported as a CentralPUMAPDPLocalTimeoutException.
+	 */
+	private ResponseTypeP evaluateWithPool(
+			List<AttributeValueP> cachedAttributes) throws TException {
+		CentralPUMAPDPConnectionPool.PooledClient client = pool.borrow(Deadline
+				.remainingMillis());
+		boolean bounded = false;
+		try {
+			bounded = client.setTimeout(Deadline.remainingMillis());
+			client.resetCounts();
+			ResponseTypeP response = client.getClient().evaluateP(
+					cachedAttributes);
+			bytesSent.update(client.getBytesSent());
+			bytesReceived.update(client.getBytesReceived());
+			pool.release(client);
+			return response;
+		} catch (TTransportException e) {
+			pool.invalidate(client);
+			if (e.getType() != TTransportException.TIMED_OUT) {
+				pool.clearIdle();
+			} else if (bounded) {
+				// we stopped waiting because of our own deadline, not because
+				// the replica exceeded the read timeout
+				throw new CentralPUMAPDPLocalTimeoutException(
+						"Deadline exceeded while waiting for the central PUMA PDP at "
+								+ name, e);
+			}
+			throw e;
+		} catch (TException e) {
+			pool.invalidate(client);
+			throw e;
+		} catch (RuntimeException e) {
+			pool.invalidate(client);
+			throw e;
+		}
+	}
+
+	/**
+	 * Helper function to build the name of a metric of this replica.
+	 */
+	private String metricName(String metric) {
+		return MetricRegistry.name(
+				CentralPUMAThriftPolicyEvaluatorModule.class,
+				"remotepdp.endpoint", name, metric);
+	}
+}
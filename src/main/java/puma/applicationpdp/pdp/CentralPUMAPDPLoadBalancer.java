@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the central PUMA PDP replica for a request.
+ *
+ * Only replicas whose circuit is closed are considered. Of these, two are
+ * picked at random and the one with the lowest expected cost (outstanding
+ * requests times average latency) wins ("power of two choices"). If a
+ * routing key is given, for example the tenant of the request, the replica is
+ * chosen by rendezvous hashing on that key instead, so that the requests of
+ * a tenant always go to the same replica and its caches stay warm. When that
+ * replica is ejected, only its tenants move.
+ *
+ * A replica whose circuit is half open gets up to its number of trial
+ * requests first, also when other replicas are healthy: otherwise it would
+ * never get a trial while the others are up and its circuit would keep
+ * going back to open, so it would never be re-admitted. A trial that fails
+ * is retried on another replica by the caller.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPDPLoadBalancer {
+
+	private final List<CentralPUMAPDPEndpoint> endpoints;
+
+	public CentralPUMAPDPLoadBalancer(List<CentralPUMAPDPEndpoint> endpoints) {
+		this.endpoints = Collections
+				.unmodifiableList(new ArrayList<CentralPUMAPDPEndpoint>(
+						endpoints));
+	}
+
+	public List<CentralPUMAPDPEndpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Returns whether any replica may get requests, i.e., whether not all
+	 * circuits are open.
+	 */
+	public boolean isAvailable() {
+		for (CentralPUMAPDPEndpoint endpoint : endpoints) {
+			if (endpoint.getState() != CentralPUMAPDPCircuitBreaker.State.OPEN) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the combined state of the circuits: CLOSED if any replica has a
+	 * closed circuit, OPEN if all circuits are open and HALF_OPEN otherwise.
+	 */
+	public CentralPUMAPDPCircuitBreaker.State getState() {
+		CentralPUMAPDPCircuitBreaker.State result = CentralPUMAPDPCircuitBreaker.State.OPEN;
+		for (CentralPUMAPDPEndpoint endpoint : endpoints) {
+			CentralPUMAPDPCircuitBreaker.State state = endpoint.getState();
+			if (state == CentralPUMAPDPCircuitBreaker.State.CLOSED) {
+				return state;
+			} else if (state == CentralPUMAPDPCircuitBreaker.State.HALF_OPEN) {
+				result = state;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Chooses the replica for a request.
+	 *
+	 * @param routingKey
+	 *            The key to route on, null to balance on load.
+	 * @param exclude
+	 *            A replica to avoid, for example because the request just
+	 *            failed on it. It is only chosen if no other replica may get
+	 *            the request. May be null.
+	 * @return The chosen replica, null if no replica may get the request.
+	 */
+	public CentralPUMAPDPEndpoint choose(String routingKey,
+			CentralPUMAPDPEndpoint exclude) {
+		// 1. a trial for a replica that can be re-admitted, else the healthy
+		// replicas
+		List<CentralPUMAPDPEndpoint> healthy = new ArrayList<CentralPUMAPDPEndpoint>(
+				endpoints.size());
+		for (CentralPUMAPDPEndpoint endpoint : endpoints) {
+			if (endpoint == exclude) {
+				continue;
+			}
+			CentralPUMAPDPCircuitBreaker.State state = endpoint.getState();
+			if (state == CentralPUMAPDPCircuitBreaker.State.HALF_OPEN
+					&& endpoint.allowTrial()) {
+				return endpoint;
+			} else if (state == CentralPUMAPDPCircuitBreaker.State.CLOSED) {
+				healthy.add(endpoint);
+			}
+		}
+		// 2. if there are none, try the excluded replica
+		if (healthy.isEmpty()) {
+			if (exclude != null && exclude.allowRequest()) {
+				return exclude;
+			}
+			return null;
+		}
+		// 3. route on the key
+		if (routingKey != null) {
+			return chooseByKey(routingKey, healthy);
+		}
+		// 4. power of two choices
+		if (healthy.size() == 1) {
+			return healthy.get(0);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(healthy.size());
+		int j = random.nextInt(healthy.size() - 1);
+		if (j >= i) {
+			j++;
+		}
+		CentralPUMAPDPEndpoint first = healthy.get(i);
+		CentralPUMAPDPEndpoint second = healthy.get(j);
+		return first.getCost() <= second.getCost() ? first : second;
+	}
+
+	/**
+	 * Helper function to choose a replica by rendezvous hashing: the replica
+	 * with the highest hash of the key and its name wins.
+	 */
+	private static CentralPUMAPDPEndpoint chooseByKey(String routingKey,
+			List<CentralPUMAPDPEndpoint> candidates) {
+		CentralPUMAPDPEndpoint result = null;
+		long best = Long.MIN_VALUE;
+		for (CentralPUMAPDPEndpoint endpoint : candidates) {
+			long weight = mix(31L * routingKey.hashCode()
+					+ endpoint.getName().hashCode());
+			if (result == null || weight > best) {
+				result = endpoint;
+				best = weight;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to spread the bits of a hash (the finalizer of
+	 * MurmurHash3).
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53a87e3L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
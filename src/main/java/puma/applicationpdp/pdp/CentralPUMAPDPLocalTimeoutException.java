@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Thrown when a call to the central PUMA PDP is given up locally: no pooled
+ * connection became available in time or the deadline of the evaluation (see
+ * Deadline) passed while waiting for the response. This says nothing about
+ * the health of the replica, so it does not count as a failure of the
+ * replica for its circuit breaker.
+ * 
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPDPLocalTimeoutException extends TTransportException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CentralPUMAPDPLocalTimeoutException(String message) {
+		super(TTransportException.TIMED_OUT, message);
+	}
+
+	public CentralPUMAPDPLocalTimeoutException(String message, Throwable cause) {
+		super(TTransportException.TIMED_OUT, message, cause);
+	}
+
+}
@@ -19,11 +19,16 @@
  ******************************************************************************/
 package puma.applicationpdp.pdp;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMIClientSocketFactory;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
@@ -57,6 +62,22 @@ public class CentralPUMAPolicyEvaluatorModule extends RemotePolicyEvaluatorModul
 
 	private static final int CENTRAL_PUMA_PDP_RMI_REGISITRY_PORT = 2040;
 
+	/**
+	 * The maximal time to set up a connection to the RMI registry of the
+	 * central PUMA PDP and to wait for its response, in milliseconds.
+	 * 
+	 * NOTICE: the socket factory of the remote stub itself is chosen by the
+	 * server, so calls on the stub are not bounded by these timeouts. Those
+	 * can only be bounded JVM-wide, by starting the JVM with
+	 * -Dsun.rmi.transport.tcp.responseTimeout. This module does not set that
+	 * property itself since it would affect every RMI call in the process.
+	 */
+	private static final int CONNECT_TIMEOUT = Integer.getInteger(
+			"puma.applicationpdp.centralpdp.connecttimeout", 1000);
+
+	private static final int READ_TIMEOUT = Integer.getInteger(
+			"puma.applicationpdp.centralpdp.readtimeout", 5000);
+
 	/**
 	 * Our logger
 	 */
@@ -74,7 +95,7 @@ public class CentralPUMAPolicyEvaluatorModule extends RemotePolicyEvaluatorModul
 	private void setupCentralPUMAPDPConnection() {
 		if(! isCentralPUMAPDPConnectionOK()) { //
 			try {
-				Registry registry = LocateRegistry.getRegistry(CENTRAL_PUMA_PDP_HOST, CENTRAL_PUMA_PDP_RMI_REGISITRY_PORT);
+				Registry registry = LocateRegistry.getRegistry(CENTRAL_PUMA_PDP_HOST, CENTRAL_PUMA_PDP_RMI_REGISITRY_PORT, new TimeoutSocketFactory());
 				centralPUMAPDP = (CentralPUMAPDPRemote) registry.lookup(CENTRAL_PUMA_PDP_RMI_NAME);
 			} catch(Exception e) {
 				logger.log(Level.WARNING, "FAILED to reach the central PUMA PDP", e);
@@ -176,6 +197,11 @@ public class CentralPUMAPolicyEvaluatorModule extends RemotePolicyEvaluatorModul
 			logger.log(Level.SEVERE, "The RMI connection to the remote PUMA PDP was not set up => default deny");
 			return new Result(Result.DECISION_DENY);
 		}
+		// an RMI call cannot be cut off, but do not start one without budget
+		if (Deadline.isSet() && Deadline.remainingMillis() == 0) {
+			logger.log(Level.WARNING, "Deadline exceeded before contacting the remote PUMA PDP => default deny");
+			return new Result(Result.DECISION_DENY);
+		}
 		
 		// 1. build the request
 		// NOTE not used: RequestType request = context.getRequest();
@@ -210,6 +236,23 @@ public class CentralPUMAPolicyEvaluatorModule extends RemotePolicyEvaluatorModul
 		}
 	}
 
+	/**
+	 * Socket factory for the connection to the RMI registry which applies the
+	 * connect and read timeouts.
+	 */
+	private static class TimeoutSocketFactory implements RMIClientSocketFactory, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			return socket;
+		}
+	}
+
 	/**
 	 * 
 	 * @param node
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.xacml.AbstractPolicy;
+import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.MatchResult;
+import com.sun.xacml.ParsingException;
+import com.sun.xacml.ctx.CachedAttribute;
+import com.sun.xacml.ctx.Result;
+import com.sun.xacml.support.finder.PolicyReader;
+
+/**
+ * A local, versioned copy of the central PUMA policy.
+ *
+ * The copy is only used for requests that carry every attribute the policy
+ * can reference (see PolicyAnalysis): for those requests, the local decision
+ * equals the one of the central PUMA PDP. Other requests still go to the
+ * central PUMA PDP, which can look up the missing attributes.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CentralPUMAPolicyReplica {
+
+	public static final String CENTRAL_PUMA_POLICY_ID = "central-puma-policy";
+
+	private static final Logger logger = Logger
+			.getLogger(CentralPUMAPolicyReplica.class.getName());
+
+	private final AbstractPolicy policy;
+
+	private final PolicyAnalysis analysis;
+
+	private final String version;
+
+	private CentralPUMAPolicyReplica(AbstractPolicy policy,
+			PolicyAnalysis analysis, String version) {
+		this.policy = policy;
+		this.analysis = analysis;
+		this.version = version;
+	}
+
+	/**
+	 * Parses the given copy of the central PUMA policy. Returns null if the
+	 * policy could not be parsed or has the wrong id.
+	 */
+	public static CentralPUMAPolicyReplica parse(byte[] policy, String version) {
+		PolicyAnalysis analysis;
+		AbstractPolicy parsed;
+		try {
+			analysis = PolicyAnalysis.analyze(policy);
+			parsed = new PolicyReader(null).readPolicy(new ByteArrayInputStream(
+					policy));
+		} catch (ParsingException e) {
+			logger.log(Level.SEVERE,
+					"Error when parsing copy of the central PUMA policy", e);
+			return null;
+		}
+		if (!parsed.getId().toString().equals(CENTRAL_PUMA_POLICY_ID)) {
+			logger.severe("The id of the copy of the central PUMA policy should be \""
+					+ CENTRAL_PUMA_POLICY_ID
+					+ "\". Given id: \""
+					+ parsed.getId().toString() + "\".");
+			return null;
+		}
+		if (analysis.referencesPolicies() || analysis.usesSelectors()) {
+			logger.warning("The copy of the central PUMA policy references other policies or uses selectors, it will never be evaluated locally");
+		}
+		return new CentralPUMAPolicyReplica(parsed, analysis, version);
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public PolicyAnalysis getAnalysis() {
+		return analysis;
+	}
+
+	/**
+	 * Returns whether this copy can reach the same decision as the central
+	 * PUMA PDP using only the attributes in the given context.
+	 */
+	public boolean canEvaluate(EvaluationCtx context) {
+		if (analysis.referencesPolicies() || analysis.usesSelectors()) {
+			return false;
+		}
+		Collection<CachedAttribute> attributes = context
+				.getRawCachedAttributes();
+		Set<String> ids = new HashSet<String>(attributes.size() * 2);
+		for (CachedAttribute ca : attributes) {
+			ids.add(ca.getId());
+		}
+		return analysis.isSelfContained(ids);
+	}
+
+	/**
+	 * Evaluates this copy for the given context.
+	 */
+	public Result evaluate(EvaluationCtx context) {
+		MatchResult match = policy.match(context);
+		if (match.getResult() == MatchResult.NO_MATCH) {
+			return new Result(Result.DECISION_NOT_APPLICABLE);
+		} else if (match.getResult() == MatchResult.INDETERMINATE) {
+			return new Result(Result.DECISION_INDETERMINATE);
+		}
+		return policy.evaluate(context);
+	}
+}
@@ -20,25 +20,33 @@
 package puma.applicationpdp.pdp;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
 import puma.thrift.pdp.AttributeValueP;
 import puma.thrift.pdp.DataTypeP;
-import puma.thrift.pdp.RemotePDPService;
 import puma.thrift.pdp.ResponseTypeP;
 import puma.util.timing.TimerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
 import com.codahale.metrics.Timer;
 import com.sun.xacml.EvaluationCtx;
 import com.sun.xacml.PDP;
@@ -54,13 +62,148 @@ import com.sun.xacml.remote.RemotePolicyEvaluatorModule;
 public class CentralPUMAThriftPolicyEvaluatorModule extends
 		RemotePolicyEvaluatorModule {
 
-	private static final String CENTRAL_PUMA_PDP_HOST = "puma-central-puma-pdp";
+	private static final String CENTRAL_PUMA_PDP_HOST = System.getProperty(
+			"puma.applicationpdp.centralpdp.host", "puma-central-puma-pdp");
 
-	private static final int CENTRAL_PUMA_PDP_THRIFT_PORT = 9091;
+	private static final int CENTRAL_PUMA_PDP_THRIFT_PORT = Integer.getInteger(
+			"puma.applicationpdp.centralpdp.port", 9091);
 
-	RemotePDPService.Client client;
+	/**
+	 * The central PUMA PDP replicas as a comma-separated list of host:port
+	 * (the port is optional). Defaults to the single host and port above.
+	 */
+	private static final String CENTRAL_PUMA_PDP_ENDPOINTS = System
+			.getProperty("puma.applicationpdp.centralpdp.endpoints",
+					CENTRAL_PUMA_PDP_HOST + ":" + CENTRAL_PUMA_PDP_THRIFT_PORT);
+
+	/**
+	 * The id of the attribute to route requests on, for example the tenant of
+	 * the subject, so that all requests with the same value go to the same
+	 * replica. Not set by default: requests are balanced on load.
+	 */
+	private static final String ROUTING_ATTRIBUTE = System
+			.getProperty("puma.applicationpdp.centralpdp.routingattribute");
+
+	/**
+	 * The minimal and maximal number of connections to the central PUMA PDP,
+	 * the maximal time to wait for a connection and the time after which an
+	 * idle connection is closed (both in milliseconds).
+	 */
+	private static final int POOL_MIN_SIZE = Integer.getInteger(
+			"puma.applicationpdp.pool.min", 1);
+
+	private static final int POOL_MAX_SIZE = Integer.getInteger(
+			"puma.applicationpdp.pool.max", 16);
+
+	private static final long POOL_MAX_WAIT = Long.getLong(
+			"puma.applicationpdp.pool.maxwait", 1000L);
+
+	private static final long POOL_IDLE_TIMEOUT = Long.getLong(
+			"puma.applicationpdp.pool.idletimeout", 60000L);
+
+	/**
+	 * The maximal time to set up a connection to the central PUMA PDP and to
+	 * wait for its response, in milliseconds. The time to wait for a response
+	 * is shortened further if the evaluation has a deadline (see Deadline).
+	 */
+	private static final int CONNECT_TIMEOUT = Integer.getInteger(
+			"puma.applicationpdp.centralpdp.connecttimeout", 1000);
+
+	private static final int READ_TIMEOUT = Integer.getInteger(
+			"puma.applicationpdp.centralpdp.readtimeout", 5000);
+
+	/**
+	 * Whether to talk TCompactProtocol on a framed transport to the central
+	 * PUMA PDP instead of TBinaryProtocol on an unframed socket. Only enable
+	 * this if all replicas serve the compact encoding.
+	 */
+	private static final boolean COMPACT_PROTOCOL = Boolean
+			.getBoolean("puma.applicationpdp.centralpdp.compact");
+
+	/**
+	 * The minimal budget in milliseconds that should be left to retry a failed
+	 * call with a new connection.
+	 */
+	private static final long RETRY_MIN_BUDGET = Long.getLong(
+			"puma.applicationpdp.centralpdp.retryminbudget", 50L);
+
+	/**
+	 * The number of consecutive failures after which the circuit to the
+	 * central PUMA PDP opens, the interval in milliseconds at which we check
+	 * whether it can be reached again and the number of trial requests when
+	 * it can.
+	 */
+	private static final int CIRCUIT_FAILURE_THRESHOLD = Integer.getInteger(
+			"puma.applicationpdp.circuit.failures", 5);
+
+	private static final long CIRCUIT_PROBE_INTERVAL = Long.getLong(
+			"puma.applicationpdp.circuit.probeinterval", 5000L);
+
+	private static final int CIRCUIT_HALF_OPEN_TRIALS = Integer.getInteger(
+			"puma.applicationpdp.circuit.trials", 1);
+
+	/**
+	 * The decision when the central PUMA PDP cannot be reached: deny (default),
+	 * permit, notapplicable or indeterminate.
+	 */
+	private static final int FALLBACK_DECISION = parseDecision(System
+			.getProperty("puma.applicationpdp.circuit.fallback", "deny"));
+
+	private final CentralPUMAPDPLoadBalancer loadBalancer;
+
+	private final Counter fallbacks;
+
+	private final Counter rejected;
+
+	private final Counter deadlineExceeded;
+
+	private final Histogram remainingBudget;
+
+	/**
+	 * The remote evaluations that are in flight at this moment, so that
+	 * concurrent identical requests can share the same remote call.
+	 */
+	private final ConcurrentMap<List<AttributeValueP>, CompletableFuture<ResponseTypeP>> inFlight = new ConcurrentHashMap<List<AttributeValueP>, CompletableFuture<ResponseTypeP>>();
 
-	TTransport transport;
+	private final Counter remoteCalls;
+
+	/**
+	 * The number of users of this module, see retain(). The creator of the
+	 * module is the first user.
+	 */
+	private final AtomicInteger users = new AtomicInteger(1);
+
+	private final Counter coalescedCalls;
+
+	private final Counter retries;
+
+	/**
+	 * The local copy of the central PUMA policy, null if there is none.
+	 */
+	private final CentralPUMAPolicyReplica replica;
+
+	/**
+	 * The attributes the central PUMA policy can reference, null if unknown.
+	 * Only these attributes are sent to the central PUMA PDP, and only if
+	 * they were determined for centralPolicyVersion.
+	 */
+	private volatile AttributeProjection projection;
+
+	/**
+	 * The version of the central PUMA policy the central PUMA PDP serves as
+	 * far as we know, null if unknown.
+	 */
+	private volatile String centralPolicyVersion;
+
+	private final Counter attributesSent;
+
+	private final Counter attributesStripped;
+
+	private final Counter staleProjections;
+
+	private final Counter localDecisions;
+
+	private final Counter remoteDecisions;
 
 	/**
 	 * Our logger
@@ -68,48 +211,198 @@ public class CentralPUMAThriftPolicyEvaluatorModule extends
 	private final Logger logger = Logger.getLogger(PDP.class.getName());
 
 	public CentralPUMAThriftPolicyEvaluatorModule() {
-		setupCentralPUMAPDPConnection();
+		this(null);
 	}
 
 	/**
-	 * Idempotent helper function to set up the RMI connection to the central
-	 * PUMA PDP.
+	 * @param replica
+	 *            A local copy of the central PUMA policy which is used instead
+	 *            of the central PUMA PDP for every request that carries all
+	 *            attributes needed by the policy. May be null.
 	 */
-	private void setupCentralPUMAPDPConnection() {
-		if (!isCentralPUMAPDPConnectionOK()) {
-			// set up Thrift
-			transport = new TSocket(CENTRAL_PUMA_PDP_HOST,
-					CENTRAL_PUMA_PDP_THRIFT_PORT);
-			try {
-				transport.open();
-			} catch (TTransportException e) {
-				logger.log(Level.WARNING,
-						"FAILED to reach the central PUMA PDP", e);
-				e.printStackTrace();
+	public CentralPUMAThriftPolicyEvaluatorModule(
+			CentralPUMAPolicyReplica replica) {
+		this.replica = replica;
+		List<CentralPUMAPDPEndpoint> endpoints = new ArrayList<CentralPUMAPDPEndpoint>();
+		for (String endpoint : CENTRAL_PUMA_PDP_ENDPOINTS.split(",")) {
+			endpoint = endpoint.trim();
+			if (endpoint.isEmpty()) {
+				continue;
+			}
+			String host = endpoint;
+			int port = CENTRAL_PUMA_PDP_THRIFT_PORT;
+			int colon = endpoint.lastIndexOf(':');
+			if (colon > 0) {
+				host = endpoint.substring(0, colon);
+				port = Integer.parseInt(endpoint.substring(colon + 1));
+			}
+			endpoints.add(new CentralPUMAPDPEndpoint(host, port,
+					POOL_MIN_SIZE, POOL_MAX_SIZE, POOL_MAX_WAIT,
+					POOL_IDLE_TIMEOUT, CONNECT_TIMEOUT, READ_TIMEOUT,
+					COMPACT_PROTOCOL, CIRCUIT_FAILURE_THRESHOLD,
+					CIRCUIT_PROBE_INTERVAL, CIRCUIT_HALF_OPEN_TRIALS));
+		}
+		this.loadBalancer = new CentralPUMAPDPLoadBalancer(endpoints);
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.remoteCalls = registry.counter(MetricRegistry.name(getClass(),
+				"remotepdp.calls"));
+		this.coalescedCalls = registry.counter(MetricRegistry.name(
+				getClass(), "remotepdp.coalesced"));
+		this.retries = registry.counter(MetricRegistry.name(getClass(),
+				"remotepdp.retries"));
+		this.fallbacks = registry.counter(MetricRegistry.name(getClass(),
+				"remotepdp.fallbacks"));
+		this.rejected = registry.counter(MetricRegistry.name(getClass(),
+				"remotepdp.circuit.rejected"));
+		this.deadlineExceeded = registry.counter(MetricRegistry.name(
+				getClass(), "remotepdp.deadline.exceeded"));
+		this.remainingBudget = registry.histogram(MetricRegistry.name(
+				getClass(), "remotepdp.deadline.remaining"));
+		this.attributesSent = registry.counter(MetricRegistry.name(
+				getClass(), "remotepdp.attributes.sent"));
+		this.attributesStripped = registry.counter(MetricRegistry.name(
+				getClass(), "remotepdp.attributes.stripped"));
+		this.staleProjections = registry.counter(MetricRegistry.name(
+				getClass(), "remotepdp.attributes.stale-projection"));
+		this.localDecisions = registry.counter(MetricRegistry.name(
+				getClass(), "centralpolicy.local"));
+		this.remoteDecisions = registry.counter(MetricRegistry.name(
+				getClass(), "centralpolicy.remote"));
+		String localRatioName = MetricRegistry.name(getClass(),
+				"centralpolicy.local-ratio");
+		registry.remove(localRatioName);
+		registry.register(localRatioName, new RatioGauge() {
+			@Override
+			protected Ratio getRatio() {
+				return Ratio.of(localDecisions.getCount(),
+						localDecisions.getCount() + remoteDecisions.getCount());
+			}
+		});
+		String ratioName = MetricRegistry.name(getClass(),
+				"remotepdp.coalescing-ratio");
+		registry.remove(ratioName);
+		registry.register(ratioName, new RatioGauge() {
+			@Override
+			protected Ratio getRatio() {
+				return Ratio.of(coalescedCalls.getCount(),
+						coalescedCalls.getCount() + remoteCalls.getCount());
+			}
+		});
+	}
+
+	/**
+	 * Publishes the metrics of the connections of this module, replacing those
+	 * of any previous module.
+	 */
+	public void publishMetrics() {
+		for (CentralPUMAPDPEndpoint endpoint : loadBalancer.getEndpoints()) {
+			endpoint.publishMetrics();
+		}
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		String stateName = MetricRegistry.name(getClass(),
+				"remotepdp.circuit.state");
+		registry.remove(stateName);
+		registry.register(stateName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return loadBalancer.getState().ordinal();
 			}
+		});
+	}
 
-			TProtocol protocol = new TBinaryProtocol(transport);
-			client = new RemotePDPService.Client(protocol);
-			logger.info("Set up Thrift client to Central PUMA PDP");
+	/**
+	 * Registers another user of this module, for example the PDP of a tenant
+	 * that shares the module of the default PDP. Every user should call
+	 * release() when it no longer uses this module. Returns false if the
+	 * module was closed already.
+	 */
+	public boolean retain() {
+		while (true) {
+			int current = users.get();
+			if (current <= 0) {
+				return false;
+			}
+			if (users.compareAndSet(current, current + 1)) {
+				return true;
+			}
 		}
 	}
 
 	/**
-	 * Helper function that returns whether the RMI connection to the central
-	 * PUMA PDP is set up or not.
+	 * Unregisters a user of this module, closing it when it was the last one.
 	 */
-	private boolean isCentralPUMAPDPConnectionOK() {
-		return client != null;
+	public void release() {
+		if (users.decrementAndGet() == 0) {
+			close();
+		}
 	}
 
 	/**
-	 * Resets the central PUMA connection so that isCentralPUMAPDPConnectionOK()
-	 * returns false and the connection can be set up again using
-	 * setupCentralPUMAPDPConnection().
+	 * Closes the connections to the central PUMA PDP, whether the module
+	 * still has users or not.
 	 */
-	private void resetCentralPUMAPDPConnection() {
-		transport.close();
-		client = null;
+	public void close() {
+		users.set(0);
+		for (CentralPUMAPDPEndpoint endpoint : loadBalancer.getEndpoints()) {
+			endpoint.close();
+		}
+	}
+
+	/**
+	 * Returns the combined state of the circuits to the central PUMA PDP
+	 * replicas: OPEN only if no replica can be reached.
+	 */
+	public CentralPUMAPDPCircuitBreaker.State getCircuitState() {
+		return loadBalancer.getState();
+	}
+
+	/**
+	 * Sets the attributes the central PUMA policy can reference. From now on,
+	 * only those attributes are sent to the central PUMA PDP as long as the
+	 * version of the projection is the version of the central PUMA policy set
+	 * with setCentralPolicyVersion(). Set to null to send all attributes
+	 * again.
+	 */
+	public void setAttributeProjection(AttributeProjection projection) {
+		this.projection = projection;
+	}
+
+	public AttributeProjection getAttributeProjection() {
+		return projection;
+	}
+
+	/**
+	 * Sets the version of the central PUMA policy the central PUMA PDP
+	 * serves. As long as this version is unknown (null) or differs from the
+	 * version of the attribute projection, all attributes are sent: a
+	 * projection for another version of the policy may leave out attributes
+	 * the current version needs.
+	 */
+	public void setCentralPolicyVersion(String version) {
+		this.centralPolicyVersion = version;
+	}
+
+	public String getCentralPolicyVersion() {
+		return centralPolicyVersion;
+	}
+
+	/**
+	 * Returns the number of times the fallback decision was used instead of a
+	 * decision of the central PUMA PDP, over all modules.
+	 */
+	public long getFallbackCount() {
+		return fallbacks.getCount();
+	}
+
+	/**
+	 * Returns the number of calls to the central PUMA PDP, over all modules.
+	 * Retries and requests that shared the call of an identical request are
+	 * not counted.
+	 */
+	public long getRemoteCallCount() {
+		return remoteCalls.getCount();
 	}
 
 	/**
@@ -185,42 +478,64 @@ public class CentralPUMAThriftPolicyEvaluatorModule extends
 			return new Result(Result.DECISION_NOT_APPLICABLE);
 		}
 
-		// try to set up the RMI connection every time (idempotent!)
-		setupCentralPUMAPDPConnection();
-		if (!isCentralPUMAPDPConnectionOK()) {
-			logger.log(Level.SEVERE,
-					"The RMI connection to the remote PUMA PDP was not set up => default deny");
-			return new Result(Result.DECISION_DENY);
+		// 0. evaluate locally if we can
+		if (replica != null && replica.canEvaluate(context)) {
+			localDecisions.inc();
+			return replica.evaluate(context);
+		}
+		remoteDecisions.inc();
+
+		// fail fast if there is no time left
+		if (Deadline.isSet()) {
+			long remaining = Deadline.remainingMillis();
+			remainingBudget.update(remaining);
+			if (remaining == 0) {
+				deadlineExceeded.inc();
+				fallbacks.inc();
+				return new Result(FALLBACK_DECISION);
+			}
+		}
+
+		// fail fast if the central PUMA PDP is known to be down
+		if (!loadBalancer.isAvailable()) {
+			rejected.inc();
+			fallbacks.inc();
+			return new Result(FALLBACK_DECISION);
 		}
 
 		// 1. build the request
 		// NOTE not used: RequestType request = context.getRequest();
-		// 2. build the cached attributes
-		List<AttributeValueP> cachedAttributes = convertCachedAttributes(context
-				.getRawCachedAttributes());
+		// 2. build the cached attributes, only those the central PUMA policy
+		// can reference if we know them
+		Collection<CachedAttribute> rawCachedAttributes = context
+				.getRawCachedAttributes();
+		AttributeProjection projection = this.projection;
+		if (projection != null && !projection.isFor(centralPolicyVersion)) {
+			staleProjections.inc();
+			projection = null;
+		}
+		if (projection != null) {
+			int all = rawCachedAttributes.size();
+			rawCachedAttributes = projection.project(rawCachedAttributes);
+			attributesStripped.inc(all - rawCachedAttributes.size());
+		}
+		attributesSent.inc(rawCachedAttributes.size());
+		List<AttributeValueP> cachedAttributes = convertCachedAttributes(rawCachedAttributes);
+		String routingKey = getRoutingKey(cachedAttributes);
 		// 3. ask for a response
 		ResponseTypeP response;
 		Timer.Context timerCtx = TimerFactory.getInstance()
 				.getTimer(getClass(), "remotepdp.total").time();
 		try {
-			response = client.evaluateP(cachedAttributes);
+			response = evaluateCoalesced(cachedAttributes, routingKey);
 		} catch (TException e) {
-			logger.log(
-					Level.WARNING,
-					"TException when contacting the remote PUMA PDP, trying to set up connection again",
-					e);
-			resetCentralPUMAPDPConnection();
-			setupCentralPUMAPDPConnection();
-			// try again
-			try {
-				response = client.evaluateP(cachedAttributes);
-			} catch (TException e1) {
-				logger.log(
-						Level.WARNING,
-						"Again TException when contacting the remote PUMA PDP => default deny",
-						e);
-				return new Result(Result.DECISION_DENY);
+			if (Deadline.isSet() && Deadline.remainingMillis() == 0) {
+				deadlineExceeded.inc();
 			}
+			logger.warning("TException when contacting the remote PUMA PDP => fallback decision: "
+					+ e.getMessage());
+			fallbacks.inc();
+			return new Result(FALLBACK_DECISION);
 		} finally {
 			timerCtx.stop();
 		}
@@ -236,8 +551,153 @@ public class CentralPUMAThriftPolicyEvaluatorModule extends
 		}
 	}
 
+	/**
+	 * Helper function to ask the central PUMA PDP for a response, sharing the
+	 * remote call with any concurrent identical request. The first thread to
+	 * ask a question performs the remote call, threads asking the same
+	 * question while that call is in flight just wait for its response, but
+	 * not longer than their own deadline. If the call was given up locally
+	 * (e.g., because the deadline of the first thread passed), a waiting
+	 * thread that still has time left asks the question itself instead of
+	 * sharing that failure.
+	 */
+	private ResponseTypeP evaluateCoalesced(
+			List<AttributeValueP> cachedAttributes, String routingKey)
+			throws TException {
+		CompletableFuture<ResponseTypeP> ours = new CompletableFuture<ResponseTypeP>();
+		CompletableFuture<ResponseTypeP> theirs = inFlight.putIfAbsent(
+				cachedAttributes, ours);
+		if (theirs != null) {
+			coalescedCalls.inc();
+			try {
+				if (Deadline.isSet()) {
+					return theirs.get(Deadline.remainingMillis(),
+							TimeUnit.MILLISECONDS);
+				}
+				return theirs.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof CentralPUMAPDPLocalTimeoutException
+						&& Deadline.remainingMillis() > 0) {
+					// their timeout is not ours: try again, the failed call
+					// may not have been removed yet
+					inFlight.remove(cachedAttributes, theirs);
+					return evaluateCoalesced(cachedAttributes, routingKey);
+				}
+				if (e.getCause() instanceof TException) {
+					throw (TException) e.getCause();
+				}
+				throw new CompletionException(e.getCause());
+			} catch (TimeoutException e) {
+				throw new CentralPUMAPDPLocalTimeoutException(
+						"Deadline exceeded while waiting for the central PUMA PDP");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TTransportException(TTransportException.UNKNOWN,
+						"Interrupted while waiting for the central PUMA PDP");
+			}
+		}
+		remoteCalls.inc();
+		try {
+			ResponseTypeP response = evaluateRemotely(cachedAttributes,
+					routingKey);
+			ours.complete(response);
+			return response;
+		} catch (TException e) {
+			ours.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			ours.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(cachedAttributes, ours);
+		}
+	}
+
+	/**
+	 * Helper function to ask a central PUMA PDP replica chosen by the load
+	 * balancer for a response. If the call fails, we try once more on another
+	 * replica if there is one, if at least RETRY_MIN_BUDGET milliseconds are
+	 * left before the deadline. If the load balancer has no other replica than
+	 * the one that just failed, the retry goes to that replica again, but a
+	 * second failure does not count again for its circuit breaker: one request
+	 * counts at most one failure per replica.
+	 */
+	private ResponseTypeP evaluateRemotely(
+			List<AttributeValueP> cachedAttributes, String routingKey)
+			throws TException {
+		CentralPUMAPDPEndpoint endpoint = loadBalancer.choose(routingKey, null);
+		if (endpoint == null) {
+			throw new TTransportException(TTransportException.NOT_OPEN,
+					"No central PUMA PDP replica is available");
+		}
+		boolean countFailure;
+		try {
+			return endpoint.evaluate(cachedAttributes);
+		} catch (TException e) {
+			if (Deadline.remainingMillis() < RETRY_MIN_BUDGET) {
+				throw e;
+			}
+			CentralPUMAPDPEndpoint other = loadBalancer.choose(routingKey,
+					endpoint);
+			if (other == null) {
+				throw e;
+			}
+			logger.fine("TException when contacting the remote PUMA PDP at "
+					+ endpoint.getName() + ", trying again with "
+					+ other.getName() + ": " + e.getMessage());
+			// the first failure only counted if it was not a local timeout
+			countFailure = other != endpoint
+					|| e instanceof CentralPUMAPDPLocalTimeoutException;
+			endpoint = other;
+		}
+		// try again
+		retries.inc();
+		return endpoint.evaluate(cachedAttributes, countFailure);
+	}
+
+	/**
+	 * Helper function to find the value of the routing attribute in the given
+	 * attributes. Returns null if requests should not be routed on an
+	 * attribute or if the attribute is not present.
+	 */
+	private static String getRoutingKey(List<AttributeValueP> cachedAttributes) {
+		if (ROUTING_ATTRIBUTE == null) {
+			return null;
+		}
+		for (AttributeValueP avp : cachedAttributes) {
+			if (ROUTING_ATTRIBUTE.equals(avp.getId())) {
+				if (avp.getStringValuesSize() > 0) {
+					return avp.getStringValues().get(0);
+				} else if (avp.getIntValuesSize() > 0) {
+					return avp.getIntValues().get(0).toString();
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to parse the name of a decision.
+	 */
+	private static int parseDecision(String decision) {
+		if (decision.equalsIgnoreCase("permit")) {
+			return Result.DECISION_PERMIT;
+		} else if (decision.equalsIgnoreCase("notapplicable")) {
+			return Result.DECISION_NOT_APPLICABLE;
+		} else if (decision.equalsIgnoreCase("indeterminate")) {
+			return Result.DECISION_INDETERMINATE;
+		} else {
+			return Result.DECISION_DENY;
+		}
+	}
+
+	/**
+	 * Helper function to convert cached attributes to their Thrift
+	 * representation. Package-visible for the benchmarks.
+	 */
 	@SuppressWarnings("unchecked")
-	private List<AttributeValueP> convertCachedAttributes(
+	static List<AttributeValueP> convertCachedAttributes(
 			Collection<CachedAttribute> cachedAttributes) {
 		// preprocess the input
 		List<AttributeValueP> values = new LinkedList<AttributeValueP>();
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Transport that counts the bytes written to and read from the transport it
+ * wraps, to report the size of the messages on the wire.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class CountingTransport extends TTransport {
+
+	private final TTransport transport;
+
+	private long bytesWritten = 0;
+
+	private long bytesRead = 0;
+
+	public CountingTransport(TTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the number of bytes written since the last reset.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of bytes read since the last reset.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public void resetCounts() {
+		bytesWritten = 0;
+		bytesRead = 0;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return transport.isOpen();
+	}
+
+	@Override
+	public void open() throws TTransportException {
+		transport.open();
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws TTransportException {
+		int read = transport.read(buf, off, len);
+		bytesRead += read;
+		return read;
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws TTransportException {
+		transport.write(buf, off, len);
+		bytesWritten += len;
+	}
+
+	@Override
+	public void flush() throws TTransportException {
+		transport.flush();
+	}
+}
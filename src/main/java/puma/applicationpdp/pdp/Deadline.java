@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of the policy evaluation on the current thread.
+ *
+ * The XACML engine does not let us pass anything else than the evaluation
+ * context down to the remote policy evaluator modules, so the deadline is
+ * kept in a thread local: ApplicationPDP sets it for the duration of an
+ * evaluation and the modules read it on the same thread.
+ *
+ * Deadlines are absolute values of System.nanoTime().
+ *
+ * @author Maarten Decat
+ *
+ */
+public class Deadline {
+
+	/**
+	 * Marker for an evaluation without deadline.
+	 */
+	public static final long NONE = Long.MAX_VALUE;
+
+	private static final ThreadLocal<Long> current = new ThreadLocal<Long>();
+
+	private Deadline() {
+		// static methods only
+	}
+
+	/**
+	 * Returns the deadline for a budget of the given number of milliseconds
+	 * starting now, or NONE if the budget is 0 or negative.
+	 */
+	public static long after(long budgetMillis) {
+		if (budgetMillis <= 0) {
+			return NONE;
+		}
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	/**
+	 * Sets the deadline of the evaluation on the current thread.
+	 */
+	static void set(long deadline) {
+		if (deadline == NONE) {
+			current.remove();
+		} else {
+			current.set(deadline);
+		}
+	}
+
+	/**
+	 * Returns the deadline of the evaluation on the current thread, NONE if
+	 * there is none, so that it can be set on other threads that work for
+	 * the same evaluation.
+	 */
+	static long get() {
+		Long deadline = current.get();
+		return deadline == null ? NONE : deadline;
+	}
+
+	/**
+	 * Clears the deadline of the evaluation on the current thread.
+	 */
+	static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * Returns whether the evaluation on the current thread has a deadline.
+	 */
+	public static boolean isSet() {
+		return current.get() != null;
+	}
+
+	/**
+	 * Returns the number of milliseconds left until the deadline of the
+	 * evaluation on the current thread (0 if it has passed), or
+	 * Long.MAX_VALUE if there is no deadline.
+	 */
+	public static long remainingMillis() {
+		Long deadline = current.get();
+		if (deadline == null) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(deadline
+				- System.nanoTime()));
+	}
+}
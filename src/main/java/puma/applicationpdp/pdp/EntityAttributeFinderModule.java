@@ -0,0 +1,575 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import puma.piputils.EntityDatabase;
+import puma.piputils.QueryAttributeFinderModule;
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.attr.AttributeDesignator;
+import com.sun.xacml.attr.AttributeValue;
+import com.sun.xacml.cond.EvaluationResult;
+import com.sun.xacml.ctx.CachedAttribute;
+import com.sun.xacml.finder.AttributeFinderModule;
+
+/**
+ * Attribute finder module that fetches attributes from the entity database
+ * for all application PDPs.
+ *
+ * The entity database is opened once and the query attribute finder module
+ * on top of it is shared by all PDPs, so that its connections survive
+ * reloads of the PDP instead of being set up again for every new PDP.
+ *
+ * The attributes found are cached per entity, i.e., per value of the
+ * subject:id, object:id or action:id attribute of the request. Every
+ * attribute is considered stale after the configured TTL and the least
+ * recently used entities are evicted in batches when more than the
+ * configured number of entities are cached. As in the DecisionCache, the LRU
+ * order is approximate so that a cache hit does not take any lock.
+ * Environment attributes are never cached. Since an entity can change in the
+ * database without this PDP knowing, the cache can be invalidated per entity
+ * or as a whole. A query that was started before an invalidation does not
+ * put its result in the cache, see put().
+ *
+ * Besides the hits and misses of the cache, the number of database queries
+ * and the time spent on them is measured per query and per evaluation. To
+ * know which evaluation a query belongs to, ApplicationPDP marks the start
+ * and end of an evaluation on the evaluating thread, like it does for the
+ * Deadline.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class EntityAttributeFinderModule extends AttributeFinderModule {
+
+	private static final Logger logger = Logger
+			.getLogger(EntityAttributeFinderModule.class.getName());
+
+	/**
+	 * The maximal number of entities of which the attributes are cached. A
+	 * size of 0 or less disables the cache.
+	 */
+	private static final int CACHE_SIZE = Integer.getInteger(
+			"puma.applicationpdp.attributes.cache.size", 10000);
+
+	/**
+	 * The time to live of a cached attribute, in milliseconds.
+	 */
+	private static final long CACHE_TTL = Long.getLong(
+			"puma.applicationpdp.attributes.cache.ttl", 60000L);
+
+	private static final String SUBJECT_ID = "subject:id";
+
+	private static final String OBJECT_ID = "object:id";
+
+	private static final String ACTION_ID = "action:id";
+
+	/**
+	 * The entities of the evaluation on the current thread and the queries
+	 * done for it.
+	 */
+	private static final ThreadLocal<Evaluation> current = new ThreadLocal<Evaluation>();
+
+	/**
+	 * The fraction of the maximal number of entities that is evicted at once
+	 * when the cache is full.
+	 */
+	private static final double EVICTION_BATCH = 0.1;
+
+	/**
+	 * The module that queries the entity database, null until open() is
+	 * called.
+	 */
+	private volatile AttributeFinderModule database;
+
+	private final ConcurrentHashMap<String, CachedEntity> entities;
+
+	/**
+	 * Incremented on every invalidation, see put().
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Whether some thread is evicting entities. Evictions are never run
+	 * concurrently and never block reads.
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	private final Counter evictions;
+
+	private final Timer queries;
+
+	private final Histogram queriesPerEvaluation;
+
+	private final Histogram queryTimePerEvaluation;
+
+	/**********************
+	 * SINGLETON STUFF
+	 **********************/
+
+	private static volatile EntityAttributeFinderModule instance;
+
+	public static synchronized EntityAttributeFinderModule getInstance() {
+		if (instance == null) {
+			instance = new EntityAttributeFinderModule();
+		}
+		return instance;
+	}
+
+	private EntityAttributeFinderModule() {
+		this.entities = new ConcurrentHashMap<String, CachedEntity>();
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.hits = registry.counter(MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.cache.hits"));
+		this.misses = registry.counter(MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.cache.misses"));
+		this.evictions = registry.counter(MetricRegistry.name(
+				EntityAttributeFinderModule.class,
+				"attributes.cache.evictions"));
+		this.queries = registry.timer(MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.queries"));
+		this.queriesPerEvaluation = registry.histogram(MetricRegistry.name(
+				EntityAttributeFinderModule.class,
+				"attributes.queries.evaluation"));
+		this.queryTimePerEvaluation = registry.histogram(MetricRegistry.name(
+				EntityAttributeFinderModule.class,
+				"attributes.querytime.evaluation"));
+		String sizeGaugeName = MetricRegistry.name(
+				EntityAttributeFinderModule.class, "attributes.cache.size");
+		registry.remove(sizeGaugeName);
+		registry.register(sizeGaugeName, new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return size();
+			}
+		});
+	}
+
+	/**
+	 * Opens the entity database and sets up the query attribute finder module
+	 * on top of it. Only the first call has an effect, so every PDP can call
+	 * this.
+	 */
+	public void open() {
+		if (this.database != null) {
+			return;
+		}
+		synchronized (this) {
+			if (this.database != null) {
+				return;
+			}
+			EntityDatabase.getInstance().open(true);
+			this.database = new QueryAttributeFinderModule();
+		}
+		logger.info("Opened the entity database");
+	}
+
+	/**
+	 * Helper function to get the module that queries the entity database,
+	 * opening it if needed.
+	 */
+	private AttributeFinderModule getDatabase() {
+		AttributeFinderModule result = this.database;
+		if (result == null) {
+			open();
+			result = this.database;
+		}
+		return result;
+	}
+
+	/*************************
+	 * ATTRIBUTE FINDER MODULE
+	 *************************/
+
+	@Override
+	public boolean isDesignatorSupported() {
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Set getSupportedDesignatorTypes() {
+		return getDatabase().getSupportedDesignatorTypes();
+	}
+
+	@Override
+	public EvaluationResult findAttribute(URI attributeType, URI attributeId,
+			URI issuer, URI subjectCategory, EvaluationCtx context,
+			int designatorType) {
+		return findAttribute(attributeType, attributeId, issuer,
+				subjectCategory, context, designatorType, current.get());
+	}
+
+	/**
+	 * Finds an attribute for the given evaluation, which does not have to be
+	 * the evaluation on the current thread (see AttributePrefetcher).
+	 */
+	EvaluationResult findAttribute(URI attributeType, URI attributeId,
+			URI issuer, URI subjectCategory, EvaluationCtx context,
+			int designatorType, Evaluation evaluation) {
+		String entity = evaluation == null ? null : evaluation
+				.getEntity(designatorType);
+		if (entity == null || CACHE_SIZE <= 0) {
+			return query(attributeType, attributeId, issuer,
+					subjectCategory, context, designatorType, evaluation);
+		}
+		String key = designatorType + "|" + attributeId + "|"
+				+ attributeType + "|" + issuer + "|" + subjectCategory;
+		EvaluationResult result = get(entity, key);
+		if (result != null) {
+			return result;
+		}
+		long generation = this.generation.get();
+		result = query(attributeType, attributeId, issuer, subjectCategory,
+				context, designatorType, evaluation);
+		// do not remember failures, e.g., a lost connection
+		if (!result.indeterminate()) {
+			put(entity, key, result, generation);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to query the entity database for an attribute and
+	 * measure the query.
+	 */
+	private EvaluationResult query(URI attributeType, URI attributeId,
+			URI issuer, URI subjectCategory, EvaluationCtx context,
+			int designatorType, Evaluation evaluation) {
+		AttributeFinderModule database = getDatabase();
+		long start = System.nanoTime();
+		try {
+			return database.findAttribute(attributeType, attributeId, issuer,
+					subjectCategory, context, designatorType);
+		} finally {
+			long duration = System.nanoTime() - start;
+			this.queries.update(duration, TimeUnit.NANOSECONDS);
+			if (evaluation != null) {
+				evaluation.queries.incrementAndGet();
+				evaluation.queryTime.addAndGet(duration);
+			}
+		}
+	}
+
+	/***********************
+	 * CACHE
+	 ***********************/
+
+	/**
+	 * Helper function to get a fresh cached attribute of an entity, or null
+	 * if there is none.
+	 */
+	private EvaluationResult get(String entity, String key) {
+		CachedEntity cached = this.entities.get(entity);
+		Entry entry = cached == null ? null : cached.attributes.get(key);
+		if (entry == null) {
+			this.misses.inc();
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (entry.isExpired(now)) {
+			if (cached.attributes.remove(key, entry)) {
+				this.evictions.inc();
+			}
+			this.misses.inc();
+			return null;
+		}
+		cached.lastAccess = now;
+		this.hits.inc();
+		return entry.result;
+	}
+
+	/**
+	 * Helper function to cache an attribute of an entity, unless the cache
+	 * was invalidated since the given generation was taken, i.e., since the
+	 * query for the attribute was started.
+	 * 
+	 * The generation is checked again after the attribute was stored:
+	 * invalidations first increment the generation and only then remove
+	 * attributes, so an invalidation either is seen by that check or
+	 * removes the stored attribute itself.
+	 */
+	private void put(String entity, String key, EvaluationResult result,
+			long generation) {
+		if (generation != this.generation.get()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		CachedEntity cached = this.entities.get(entity);
+		if (cached == null) {
+			CachedEntity newCached = new CachedEntity(now);
+			cached = this.entities.putIfAbsent(entity, newCached);
+			if (cached == null) {
+				cached = newCached;
+			}
+		}
+		Entry entry = new Entry(result, now + CACHE_TTL);
+		cached.attributes.put(key, entry);
+		if (generation != this.generation.get()) {
+			cached.attributes.remove(key, entry);
+			return;
+		}
+		if (this.entities.size() > CACHE_SIZE) {
+			evict();
+		}
+	}
+
+	/**
+	 * Helper function to evict the least recently used entities down to (1 -
+	 * EVICTION_BATCH) times the maximal number of entities, so that evictions
+	 * are not needed on every put. Concurrent puts that also find the cache
+	 * full do not wait for this.
+	 */
+	private void evict() {
+		if (!this.evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int excess = this.entities.size()
+					- (int) (CACHE_SIZE * (1 - EVICTION_BATCH));
+			if (excess <= 0) {
+				return;
+			}
+			// copy the access times, so that they do not change while sorting
+			List<Candidate> candidates = new ArrayList<Candidate>(
+					this.entities.size());
+			for (Map.Entry<String, CachedEntity> e : this.entities.entrySet()) {
+				candidates.add(new Candidate(e.getKey(), e.getValue()));
+			}
+			Collections.sort(candidates, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate a, Candidate b) {
+					return Long.compare(a.lastAccess, b.lastAccess);
+				}
+			});
+			for (int i = 0; i < excess && i < candidates.size(); i++) {
+				Candidate candidate = candidates.get(i);
+				if (this.entities.remove(candidate.entity, candidate.cached)) {
+					this.evictions.inc();
+				}
+			}
+		} finally {
+			this.evicting.set(false);
+		}
+	}
+
+	/**
+	 * Removes the cached attributes of the entity with the given id, be it a
+	 * subject, an object or an action.
+	 */
+	public void invalidate(String entityId) {
+		this.generation.incrementAndGet();
+		this.entities.remove(entityId);
+	}
+
+	/**
+	 * Removes all cached attributes.
+	 */
+	public void invalidateAll() {
+		this.generation.incrementAndGet();
+		this.entities.clear();
+	}
+
+	@Override
+	public void invalidateCache() {
+		invalidateAll();
+	}
+
+	/**
+	 * Returns the number of entities of which attributes are cached.
+	 */
+	public int size() {
+		return this.entities.size();
+	}
+
+	/*********************
+	 * EVALUATIONS
+	 *********************/
+
+	/**
+	 * Marks the start of an evaluation with the given cached attributes on
+	 * the current thread.
+	 */
+	static void startEvaluation(List<CachedAttribute> cachedAttributes) {
+		current.set(new Evaluation(cachedAttributes));
+	}
+
+	/**
+	 * Returns the evaluation on the current thread, or null if there is none.
+	 */
+	static Evaluation currentEvaluation() {
+		return current.get();
+	}
+
+	/**
+	 * Marks the end of the evaluation on the current thread and records the
+	 * queries done for it.
+	 */
+	static void endEvaluation() {
+		Evaluation evaluation = current.get();
+		current.remove();
+		if (evaluation == null || instance == null) {
+			return;
+		}
+		instance.queriesPerEvaluation.update(evaluation.queries.get());
+		instance.queryTimePerEvaluation.update(TimeUnit.NANOSECONDS
+				.toMicros(evaluation.queryTime.get()));
+	}
+
+	/**
+	 * The entities of an evaluation and the queries done for it. The queries
+	 * can be done on several threads, see AttributePrefetcher.
+	 */
+	static class Evaluation {
+
+		private final String subject;
+
+		private final String object;
+
+		private final String action;
+
+		private final AtomicInteger queries = new AtomicInteger();
+
+		private final AtomicLong queryTime = new AtomicLong();
+
+		public Evaluation(List<CachedAttribute> cachedAttributes) {
+			this.subject = getValue(cachedAttributes, SUBJECT_ID);
+			this.object = getValue(cachedAttributes, OBJECT_ID);
+			this.action = getValue(cachedAttributes, ACTION_ID);
+		}
+
+		/**
+		 * Returns the id of the entity of the given designator type, or null
+		 * if its attributes should not be cached.
+		 */
+		public String getEntity(int designatorType) {
+			switch (designatorType) {
+			case AttributeDesignator.SUBJECT_TARGET:
+				return this.subject;
+			case AttributeDesignator.RESOURCE_TARGET:
+				return this.object;
+			case AttributeDesignator.ACTION_TARGET:
+				return this.action;
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Helper function to get the single value of the attribute with the
+		 * given id, or null if there is no such attribute or it does not
+		 * have exactly one value.
+		 */
+		@SuppressWarnings("unchecked")
+		private static String getValue(
+				List<CachedAttribute> cachedAttributes, String id) {
+			for (CachedAttribute ca : cachedAttributes) {
+				if (ca.getId().equals(id)) {
+					Collection<AttributeValue> values = (Collection<AttributeValue>) ca
+							.getValue().getValue();
+					if (values.size() != 1) {
+						return null;
+					}
+					return values.iterator().next().encode();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The cached attributes of an entity, by designator, and when any of them
+	 * was last read.
+	 */
+	private static class CachedEntity {
+
+		private final ConcurrentHashMap<String, Entry> attributes = new ConcurrentHashMap<String, Entry>();
+
+		private volatile long lastAccess;
+
+		public CachedEntity(long lastAccess) {
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/**
+	 * An entity considered for eviction, with the time its attributes were
+	 * last read when the eviction started.
+	 */
+	private static class Candidate {
+
+		private final String entity;
+
+		private final CachedEntity cached;
+
+		private final long lastAccess;
+
+		public Candidate(String entity, CachedEntity cached) {
+			this.entity = entity;
+			this.cached = cached;
+			this.lastAccess = cached.lastAccess;
+		}
+	}
+
+	/**
+	 * A cached attribute with its expiration time.
+	 */
+	private static class Entry {
+
+		private final EvaluationResult result;
+
+		private final long expires;
+
+		public Entry(EvaluationResult result, long expires) {
+			this.result = result;
+			this.expires = expires;
+		}
+
+		public boolean isExpired(long now) {
+			return now >= expires;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.sun.xacml.ParsingException;
+
+/**
+ * Static analysis of a XACML policy: which attributes can the policy
+ * reference and does it depend on anything else than attributes.
+ *
+ * The analysis is done on the XML, so it is conservative: every attribute
+ * designator counts, whether or not it can be reached for a given request.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class PolicyAnalysis {
+
+	/**
+	 * The ids of the environment attributes that are always available locally
+	 * through the HardcodedEnvironmentAttributeModule.
+	 */
+	private static final String LOCAL_ENVIRONMENT_ATTRIBUTE_PREFIX = "urn:oasis:names:tc:xacml:1.0:environment:current-";
+
+	private final Set<String> attributeIds;
+
+	private final boolean referencesPolicies;
+
+	private final boolean usesSelectors;
+
+	private PolicyAnalysis(Set<String> attributeIds,
+			boolean referencesPolicies, boolean usesSelectors) {
+		this.attributeIds = Collections.unmodifiableSet(attributeIds);
+		this.referencesPolicies = referencesPolicies;
+		this.usesSelectors = usesSelectors;
+	}
+
+	/**
+	 * Analyzes the given XACML policy (set).
+	 *
+	 * @throws ParsingException
+	 *             If the given policy is not valid XML.
+	 */
+	public static PolicyAnalysis analyze(byte[] policy) throws ParsingException {
+		return analyze(parse(policy));
+	}
+
+	/**
+	 * Parses the given XACML policy (set) and returns its root element.
+	 *
+	 * Policies can be pushed in remotely (see
+	 * ApplicationPEP.loadCentralPUMAPolicy()), so DTDs and external entities
+	 * are refused: a policy with a DOCTYPE does not parse. Every policy is
+	 * parsed with this method before it is given to a PolicyReader, so the
+	 * PolicyReader never sees such a policy either.
+	 *
+	 * @throws ParsingException
+	 *             If the given policy is not valid XML.
+	 */
+	static Element parse(byte[] policy) throws ParsingException {
+		Document document;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory
+					.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setIgnoringComments(true);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature(
+					"http://apache.org/xml/features/disallow-doctype-decl",
+					true);
+			factory.setFeature(
+					"http://xml.org/sax/features/external-general-entities",
+					false);
+			factory.setFeature(
+					"http://xml.org/sax/features/external-parameter-entities",
+					false);
+			factory.setFeature(
+					"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+					false);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(false);
+			document = factory.newDocumentBuilder().parse(
+					new ByteArrayInputStream(policy));
+		} catch (ParserConfigurationException e) {
+			throw new ParsingException("Could not analyze policy", e);
+		} catch (SAXException e) {
+			throw new ParsingException("Could not analyze policy", e);
+		} catch (IOException e) {
+			throw new ParsingException("Could not analyze policy", e);
+		}
+		return document.getDocumentElement();
+	}
+
+	/**
+	 * Analyzes the given XACML policy (set) element.
+	 */
+	public static PolicyAnalysis analyze(Element policy) {
+		Set<String> attributeIds = new HashSet<String>();
+		boolean[] flags = new boolean[2];
+		collect(policy, attributeIds, flags);
+		return new PolicyAnalysis(attributeIds, flags[0], flags[1]);
+	}
+
+	/**
+	 * Helper function to walk the DOM tree.
+	 */
+	private static void collect(Element element, Set<String> attributeIds,
+			boolean[] flags) {
+		String name = element.getLocalName();
+		if (name == null) {
+			name = element.getTagName();
+		}
+		if (name.endsWith("AttributeDesignator")) {
+			attributeIds.add(element.getAttribute("AttributeId"));
+		} else if (name.equals("AttributeSelector")) {
+			flags[1] = true;
+		} else if (name.equals("RemotePolicyReference")
+				|| name.equals("PolicyIdReference")
+				|| name.equals("PolicySetIdReference")) {
+			flags[0] = true;
+		}
+		NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				collect((Element) child, attributeIds, flags);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of all attributes the policy can reference.
+	 */
+	public Set<String> getAttributeIds() {
+		return attributeIds;
+	}
+
+	/**
+	 * Returns whether the policy refers to other policies, locally or
+	 * remotely.
+	 */
+	public boolean referencesPolicies() {
+		return referencesPolicies;
+	}
+
+	/**
+	 * Returns whether the policy uses attribute selectors, i.e., whether it
+	 * can reference attributes that are not known statically.
+	 */
+	public boolean usesSelectors() {
+		return usesSelectors;
+	}
+
+	/**
+	 * Returns whether the policy can be evaluated using nothing more than the
+	 * given attributes and the local environment attributes.
+	 */
+	public boolean isSelfContained(Set<String> availableAttributeIds) {
+		if (referencesPolicies || usesSelectors) {
+			return false;
+		}
+		for (String id : attributeIds) {
+			if (!availableAttributeIds.contains(id)
+					&& !id.startsWith(LOCAL_ENVIRONMENT_ATTRIBUTE_PREFIX)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
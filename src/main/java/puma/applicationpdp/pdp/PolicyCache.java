@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.w3c.dom.Element;
+
+import puma.util.timing.TimerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.xacml.AbstractPolicy;
+import com.sun.xacml.ParsingException;
+import com.sun.xacml.Policy;
+import com.sun.xacml.PolicySet;
+import com.sun.xacml.support.finder.PolicyReader;
+
+/**
+ * Cache of compiled policies, keyed by the SHA-256 hash of their XML.
+ *
+ * Compiling a policy (parsing the XML, reordering its children, see
+ * PolicyOrdering, and building the policy tree with a PolicyReader) dominates
+ * the time to build an ApplicationPDP. A compiled policy is not modified
+ * during evaluation, so PDPs built from the same XML share the compiled
+ * policy: a reload of an unchanged policy and tenants with identical policies
+ * do not parse the XML again. A changed policy has a different hash and is
+ * compiled again.
+ *
+ * If a snapshot directory is set (see setSnapshotDirectory()), every
+ * policy compiled from its XML is also stored there as a binary snapshot (see
+ * PolicySnapshot), and a policy that is not in memory is first looked up
+ * there. This way, the first PDP built after a restart does not parse the XML
+ * of policies that did not change.
+ *
+ * @author Maarten Decat
+ *
+ */
+class PolicyCache {
+
+	private static final Logger logger = Logger.getLogger(PolicyCache.class
+			.getName());
+
+	/**
+	 * The maximal number of compiled policies in the cache. Set to 0 to
+	 * disable the cache.
+	 */
+	private static final int SIZE = Integer.getInteger(
+			"puma.applicationpdp.policycache.size", 64);
+
+	/***********************
+	 * SINGLETON STUFF
+	 ***********************/
+
+	private static final PolicyCache instance = new PolicyCache(SIZE);
+
+	static PolicyCache getInstance() {
+		return instance;
+	}
+
+	/***********************
+	 * CONSTRUCTOR
+	 ***********************/
+
+	private final int size;
+
+	/**
+	 * The compiled policies, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, CompiledPolicy> policies;
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	private final Timer compileTimer;
+
+	private final Counter snapshotHits;
+
+	private final Counter snapshotMisses;
+
+	/**
+	 * The directory with the snapshots of compiled policies, null if
+	 * snapshots are not used.
+	 */
+	private volatile File snapshotDirectory;
+
+	private PolicyCache(final int size) {
+		this.size = size;
+		this.policies = new LinkedHashMap<String, CompiledPolicy>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CompiledPolicy> eldest) {
+				return size() > size;
+			}
+		};
+		MetricRegistry registry = TimerFactory.getInstance()
+				.getMetricRegistry();
+		this.hits = registry.counter(MetricRegistry.name(ApplicationPDP.class,
+				"policycache.hits"));
+		this.misses = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "policycache.misses"));
+		this.compileTimer = registry.timer(MetricRegistry.name(
+				ApplicationPDP.class, "policycache.compile"));
+		this.snapshotHits = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "policycache.snapshot.hits"));
+		this.snapshotMisses = registry.counter(MetricRegistry.name(
+				ApplicationPDP.class, "policycache.snapshot.misses"));
+	}
+
+	/**
+	 * Sets the directory in which snapshots of the compiled policies are
+	 * stored and looked up, null to not use snapshots.
+	 */
+	void setSnapshotDirectory(File snapshotDirectory) {
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+	/**
+	 * Returns the compiled version of the given policy, compiling it if it is
+	 * not in the cache.
+	 *
+	 * @param indexedAttributes
+	 *            The attribute ids on which the policy will be indexed, see
+	 *            PolicyIndex.
+	 * @throws ParsingException
+	 *             If the given policy is not valid.
+	 */
+	CompiledPolicy compile(byte[] policy, Collection<String> indexedAttributes)
+			throws ParsingException {
+		byte[] hash = hash(policy);
+		String key = toHex(hash) + indexedAttributes;
+		if (size > 0) {
+			synchronized (policies) {
+				CompiledPolicy result = policies.get(key);
+				if (result != null) {
+					hits.inc();
+					return result;
+				}
+			}
+		}
+		misses.inc();
+		// compile outside the lock, concurrent compilations of the same
+		// policy give equivalent results
+		Timer.Context timerCtx = compileTimer.time();
+		CompiledPolicy result = null;
+		try {
+			File directory = this.snapshotDirectory;
+			if (directory != null) {
+				result = compileFromSnapshot(directory, hash,
+						indexedAttributes);
+			}
+			if (result == null) {
+				result = compileFromXML(policy, directory, hash,
+						indexedAttributes);
+			}
+		} finally {
+			timerCtx.stop();
+		}
+		if (size > 0) {
+			synchronized (policies) {
+				policies.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to compile a policy from its snapshot. Returns null if
+	 * there is no valid snapshot for the policy.
+	 */
+	private CompiledPolicy compileFromSnapshot(File directory, byte[] hash,
+			Collection<String> indexedAttributes) {
+		// the snapshot is already reordered
+		Element element = PolicySnapshot.read(directory, hash);
+		if (element == null) {
+			snapshotMisses.inc();
+			return null;
+		}
+		AbstractPolicy parsed;
+		try {
+			parsed = readPolicy(element);
+		} catch (ParsingException e) {
+			logger.log(Level.WARNING, "Ignoring invalid policy snapshot", e);
+			snapshotMisses.inc();
+			return null;
+		}
+		snapshotHits.inc();
+		return new CompiledPolicy(parsed, PolicyIndex.getRequiredValues(
+				element, indexedAttributes),
+				PolicyOrdering.countRemoteReferences(element),
+				AttributePrefetcher.getDesignators(element));
+	}
+
+	/**
+	 * Helper function to compile a policy from its XML and to store a
+	 * snapshot of it in the given directory, if any.
+	 */
+	private CompiledPolicy compileFromXML(byte[] policy, File directory,
+			byte[] hash, Collection<String> indexedAttributes)
+			throws ParsingException {
+		Element element = PolicyAnalysis.parse(policy);
+		// evaluate cheap local children first, so that remote references
+		// are skipped if those already decide
+		byte[] bytes = policy;
+		if (PolicyOrdering.reorder(element)) {
+			bytes = PolicyOrdering.serialize(element);
+		}
+		AbstractPolicy parsed = new PolicyReader(null)
+				.readPolicy(new ByteArrayInputStream(bytes));
+		CompiledPolicy result = new CompiledPolicy(parsed,
+				PolicyIndex.getRequiredValues(element, indexedAttributes),
+				PolicyOrdering.countRemoteReferences(element),
+				AttributePrefetcher.getDesignators(element));
+		// only valid policies get a snapshot
+		if (directory != null) {
+			PolicySnapshot.write(directory, hash, element);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to build the policy tree from the root element of a
+	 * policy (set), like a PolicyReader does after parsing the XML.
+	 */
+	private static AbstractPolicy readPolicy(Element element)
+			throws ParsingException {
+		String name = element.getLocalName();
+		if (name == null) {
+			name = element.getTagName();
+		}
+		if (name.equals("Policy")) {
+			return Policy.getInstance(element);
+		} else if (name.equals("PolicySet")) {
+			return PolicySet.getInstance(element);
+		}
+		throw new ParsingException("Unknown root document type: " + name);
+	}
+
+	/**
+	 * Removes all compiled policies from memory, for example to measure
+	 * rebuilds. The snapshots are kept.
+	 */
+	void clear() {
+		synchronized (policies) {
+			policies.clear();
+		}
+	}
+
+	/**
+	 * Helper function to compute the SHA-256 hash of the given bytes.
+	 */
+	private static byte[] hash(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+		return digest.digest(bytes);
+	}
+
+	/**
+	 * Helper function to encode the given bytes as hexadecimal digits.
+	 */
+	static String toHex(byte[] hash) {
+		StringBuilder result = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(
+					Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A parsed policy together with the values its Target requires for the
+	 * indexed attributes, the number of remote policy references in it and
+	 * the attribute designators in it.
+	 * None of these is modified after compilation. The DOM tree itself is not
+	 * kept, since reading it is not thread-safe.
+	 */
+	static class CompiledPolicy {
+
+		private final AbstractPolicy policy;
+
+		private final Map<String, Set<String>> requiredValues;
+
+		private final int remoteReferences;
+
+		private final Set<AttributePrefetcher.Designator> designators;
+
+		private CompiledPolicy(AbstractPolicy policy,
+				Map<String, Set<String>> requiredValues, int remoteReferences,
+				Set<AttributePrefetcher.Designator> designators) {
+			this.policy = policy;
+			this.requiredValues = Collections.unmodifiableMap(requiredValues);
+			this.remoteReferences = remoteReferences;
+			this.designators = Collections.unmodifiableSet(designators);
+		}
+
+		AbstractPolicy getPolicy() {
+			return policy;
+		}
+
+		Map<String, Set<String>> getRequiredValues() {
+			return requiredValues;
+		}
+
+		int getRemoteReferences() {
+			return remoteReferences;
+		}
+
+		Set<AttributePrefetcher.Designator> getDesignators() {
+			return designators;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.sun.xacml.attr.AttributeValue;
+import com.sun.xacml.ctx.CachedAttribute;
+
+/**
+ * Index of a list of policies on the values their Target requires for a few
+ * attributes, for example the action id, the object type and the tenant.
+ *
+ * A policy is constrained on an attribute if every alternative in one of the
+ * sections of its Target (Subjects, Resources, Actions or Environments)
+ * requires that attribute to be string-equal to some value. Such a policy can
+ * only apply to requests that carry one of those values. A policy that is not
+ * constrained on an attribute is a candidate for every value of it.
+ *
+ * The index only rules out policies that cannot match, so it is safe to use
+ * as a pre-filter: the candidates still have to be matched and evaluated. A
+ * request that does not carry an indexed attribute is not filtered on it,
+ * since the attribute may still be looked up by the PDP.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class PolicyIndex {
+
+	private static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+	private final int size;
+
+	/**
+	 * Per indexed attribute id: the policies per required value.
+	 */
+	private final Map<String, Map<String, BitSet>> byValue = new HashMap<String, Map<String, BitSet>>();
+
+	/**
+	 * Per indexed attribute id: the policies that are not constrained on it.
+	 */
+	private final Map<String, BitSet> unconstrained = new HashMap<String, BitSet>();
+
+	/**
+	 * Builds the index on the given attribute ids for the policies with the
+	 * given required values (see getRequiredValues()). Policies are
+	 * identified by their position in the given list.
+	 */
+	public PolicyIndex(List<Map<String, Set<String>>> requiredValues,
+			Collection<String> attributeIds) {
+		this.size = requiredValues.size();
+		for (String attributeId : attributeIds) {
+			Map<String, BitSet> values = new HashMap<String, BitSet>();
+			BitSet any = new BitSet(size);
+			for (int i = 0; i < size; i++) {
+				Set<String> required = requiredValues.get(i).get(attributeId);
+				if (required == null) {
+					any.set(i);
+					continue;
+				}
+				for (String value : required) {
+					BitSet policiesForValue = values.get(value);
+					if (policiesForValue == null) {
+						policiesForValue = new BitSet(size);
+						values.put(value, policiesForValue);
+					}
+					policiesForValue.set(i);
+				}
+			}
+			byValue.put(attributeId, values);
+			unconstrained.put(attributeId, any);
+		}
+	}
+
+	/**
+	 * Returns the number of indexed policies.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns per indexed attribute id the values required by at least one
+	 * policy, for example to generate requests that match the policies.
+	 */
+	public Map<String, Set<String>> getValues() {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Map<String, BitSet>> entry : byValue.entrySet()) {
+			result.put(entry.getKey(), new HashSet<String>(entry.getValue()
+					.keySet()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the positions of the policies that can apply to a request with
+	 * the given cached attributes.
+	 */
+	@SuppressWarnings("unchecked")
+	public BitSet getCandidates(Collection<CachedAttribute> cachedAttributes) {
+		BitSet result = new BitSet(size);
+		result.set(0, size);
+		for (CachedAttribute ca : cachedAttributes) {
+			Map<String, BitSet> values = byValue.get(ca.getId());
+			if (values == null) {
+				continue;
+			}
+			BitSet candidates = (BitSet) unconstrained.get(ca.getId()).clone();
+			for (AttributeValue av : (Collection<AttributeValue>) ca
+					.getValue().getValue()) {
+				BitSet policiesForValue = values.get(av.encode());
+				if (policiesForValue != null) {
+					candidates.or(policiesForValue);
+				}
+			}
+			result.and(candidates);
+			if (result.isEmpty()) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns per given attribute id the values the Target of the given policy
+	 * (the root element of its XML) requires for it. Attribute ids on which
+	 * the policy is not constrained are left out.
+	 */
+	public static Map<String, Set<String>> getRequiredValues(Element policy,
+			Collection<String> attributeIds) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (String attributeId : attributeIds) {
+			Set<String> required = getRequiredValues(policy, attributeId);
+			if (required != null) {
+				result.put(attributeId, required);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to find the values the Target of the given policy
+	 * requires for the given attribute. Returns null if the policy is not
+	 * constrained on the attribute.
+	 */
+	private static Set<String> getRequiredValues(Element policy,
+			String attributeId) {
+		Element target = getChild(policy, "Target");
+		if (target == null) {
+			return null;
+		}
+		for (Element section : getChildren(target)) {
+			Set<String> values = getRequiredValuesInSection(section,
+					attributeId);
+			if (values != null) {
+				return values;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to find the values a section of a Target (e.g.,
+	 * Actions) requires for the given attribute: the union of the values
+	 * required by each alternative (e.g., Action). Returns null if an
+	 * alternative does not constrain the attribute.
+	 */
+	private static Set<String> getRequiredValuesInSection(Element section,
+			String attributeId) {
+		List<Element> alternatives = getChildren(section);
+		if (alternatives.isEmpty()) {
+			return null;
+		}
+		Set<String> result = new HashSet<String>();
+		for (Element alternative : alternatives) {
+			boolean constrained = false;
+			for (Element match : getChildren(alternative)) {
+				if (!localName(match).endsWith("Match")
+						|| !STRING_EQUAL.equals(match.getAttribute("MatchId"))) {
+					continue;
+				}
+				Element value = getChild(match, "AttributeValue");
+				Element designator = null;
+				for (Element child : getChildren(match)) {
+					if (localName(child).endsWith("AttributeDesignator")) {
+						designator = child;
+					}
+				}
+				if (value != null && designator != null
+						&& attributeId.equals(designator.getAttribute("AttributeId"))) {
+					result.add(value.getTextContent().trim());
+					constrained = true;
+				}
+			}
+			if (!constrained) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to get the first child element with the given name.
+	 */
+	private static Element getChild(Element element, String name) {
+		for (Element child : getChildren(element)) {
+			if (localName(child).equals(name)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to get the child elements of an element.
+	 */
+	private static List<Element> getChildren(Element element) {
+		List<Element> result = new ArrayList<Element>();
+		NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				result.add((Element) child);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to get the name of an element without namespace
+	 * prefix.
+	 */
+	private static String localName(Element element) {
+		String name = element.getLocalName();
+		return name == null ? element.getTagName() : name;
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.sun.xacml.ParsingException;
+
+/**
+ * Reorders the children of the policy sets in a XACML policy by evaluation
+ * cost: local policies first, policies that refer to other policies next and
+ * remote policy references last.
+ *
+ * Only policy sets that combine their children with the (unordered)
+ * deny-overrides or permit-overrides algorithm are reordered, since their
+ * decision does not depend on the order of the children. These algorithms
+ * stop at the first Deny or Permit respectively, so with the remote
+ * references last, a remote call is only made if the local children did not
+ * already decide.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class PolicyOrdering {
+
+	private static final String DENY_OVERRIDES = ":policy-combining-algorithm:deny-overrides";
+
+	private static final String PERMIT_OVERRIDES = ":policy-combining-algorithm:permit-overrides";
+
+	private PolicyOrdering() {
+	}
+
+	/**
+	 * Reorders the children of the policy sets in the given policy (set)
+	 * element in place. Returns whether anything was moved.
+	 */
+	public static boolean reorder(Element policy) {
+		boolean moved = false;
+		for (Element child : getChildElements(policy)) {
+			moved |= reorder(child);
+		}
+		if (!getName(policy).equals("PolicySet")) {
+			return moved;
+		}
+		String algorithm = policy.getAttribute("PolicyCombiningAlgId");
+		if (!algorithm.endsWith(DENY_OVERRIDES)
+				&& !algorithm.endsWith(PERMIT_OVERRIDES)) {
+			return moved;
+		}
+		// the children that are policies, in their original order
+		List<Element> policies = new ArrayList<Element>();
+		for (Element child : getChildElements(policy)) {
+			if (getCost(child) >= 0) {
+				policies.add(child);
+			}
+		}
+		List<Element> sorted = new ArrayList<Element>(policies);
+		// stable, so children of the same cost keep their order
+		Collections.sort(sorted, new Comparator<Element>() {
+			@Override
+			public int compare(Element e1, Element e2) {
+				return Integer.compare(getCost(e1), getCost(e2));
+			}
+		});
+		if (sorted.equals(policies)) {
+			return moved;
+		}
+		// the policies are the last children of a policy set, apart from
+		// obligations and combiner parameters which are left where they are
+		for (Element child : sorted) {
+			policy.removeChild(child);
+		}
+		Node next = null;
+		NodeList children = policy.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE
+					&& getName((Element) child).equals("Obligations")) {
+				next = child;
+				break;
+			}
+		}
+		for (Element child : sorted) {
+			policy.insertBefore(child, next);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of remote policy references in the given policy
+	 * (set) element.
+	 */
+	public static int countRemoteReferences(Element policy) {
+		if (getName(policy).equals("RemotePolicyReference")) {
+			return 1;
+		}
+		int result = 0;
+		for (Element child : getChildElements(policy)) {
+			result += countRemoteReferences(child);
+		}
+		return result;
+	}
+
+	/**
+	 * Serializes the given policy (set) element, for example to read it with
+	 * a PolicyReader after reordering it.
+	 *
+	 * @throws ParsingException
+	 *             If the element could not be serialized.
+	 */
+	public static byte[] serialize(Element policy) throws ParsingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			TransformerFactory.newInstance().newTransformer()
+					.transform(new DOMSource(policy), new StreamResult(out));
+		} catch (TransformerException e) {
+			throw new ParsingException("Could not serialize policy", e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Helper function to estimate the cost of evaluating a child of a policy
+	 * set. Returns -1 if the child is not a policy.
+	 */
+	private static int getCost(Element child) {
+		String name = getName(child);
+		if (name.equals("RemotePolicyReference")) {
+			return 3;
+		}
+		if (!name.equals("Policy") && !name.equals("PolicySet")
+				&& !name.equals("PolicyIdReference")
+				&& !name.equals("PolicySetIdReference")) {
+			return -1;
+		}
+		if (countRemoteReferences(child) > 0) {
+			return 2;
+		}
+		if (name.endsWith("IdReference")
+				|| PolicyAnalysis.analyze(child).referencesPolicies()) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Helper function to get the local name of an element.
+	 */
+	private static String getName(Element element) {
+		String name = element.getLocalName();
+		if (name == null) {
+			name = element.getTagName();
+		}
+		return name;
+	}
+
+	/**
+	 * Helper function to get the child elements of an element.
+	 */
+	private static List<Element> getChildElements(Element element) {
+		List<Element> result = new ArrayList<Element>();
+		NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				result.add((Element) child);
+			}
+		}
+		return result;
+	}
+}
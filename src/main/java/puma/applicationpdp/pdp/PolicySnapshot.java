@@ -0,0 +1,506 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp.pdp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Binary snapshots of compiled policies on disk, so that a PDP can be built
+ * after a restart without parsing the XML of its policies again, see
+ * PolicyCache.
+ *
+ * A snapshot holds the DOM tree of a policy after reordering (see
+ * PolicyOrdering) in a compact binary form: a table of the distinct names and
+ * values followed by the nodes, which refer to the table by index. Reading a
+ * snapshot maps the file into memory and rebuilds the DOM tree directly,
+ * without lexing, decoding or validating XML and without reordering it.
+ * The policy tree of the sunxacml library is built from that DOM tree the
+ * same way a PolicyReader does, since it cannot be stored itself.
+ *
+ * A snapshot is named after the SHA-256 hash of the XML it was compiled
+ * from and starts with a header: a magic number, the version of the format,
+ * that hash, the length of the body and a CRC-32 checksum of the body. A
+ * snapshot with another format version or hash, or which is truncated or
+ * corrupt, is ignored, in which case the policy is compiled from its XML and
+ * the snapshot is written again.
+ *
+ * @author Maarten Decat
+ *
+ */
+class PolicySnapshot {
+
+	private static final Logger logger = Logger.getLogger(PolicySnapshot.class
+			.getName());
+
+	/**
+	 * The maximal number of snapshots kept in the snapshot directory. When
+	 * more are written, the least recently used ones are deleted.
+	 */
+	private static final int MAX_SNAPSHOTS = Integer.getInteger(
+			"puma.applicationpdp.policycache.snapshots.max", 64);
+
+	/**
+	 * "PUMA" in ASCII.
+	 */
+	private static final int MAGIC = 0x50554D41;
+
+	/**
+	 * The version of the format, to be increased on every change to it.
+	 */
+	static final int FORMAT_VERSION = 1;
+
+	private static final String SUFFIX = ".snapshot";
+
+	/**
+	 * The size of the header: the magic number, the format version, the hash,
+	 * the length of the body and its checksum.
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte ELEMENT = 1;
+
+	private static final byte TEXT = 2;
+
+	private static final byte CDATA = 3;
+
+	private static final byte COMMENT = 4;
+
+	private static final byte PROCESSING_INSTRUCTION = 5;
+
+	/**
+	 * Used to create documents, looked up once since that is slow.
+	 */
+	private static volatile DOMImplementation domImplementation;
+
+	private PolicySnapshot() {
+	}
+
+	/**
+	 * Returns the root element of the policy (set) in the snapshot of the
+	 * policy with the given hash in the given directory, or null if there is
+	 * no valid snapshot for that hash.
+	 */
+	static Element read(File directory, byte[] hash) {
+		File file = getFile(directory, hash);
+		if (!file.isFile()) {
+			return null;
+		}
+		Element result;
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ);
+			try {
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				result = decode(buffer, hash);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Ignoring policy snapshot " + file, e);
+			return null;
+		} catch (BufferUnderflowException e) {
+			logger.warning("Ignoring truncated policy snapshot " + file);
+			return null;
+		} catch (DOMException e) {
+			logger.log(Level.WARNING, "Ignoring corrupt policy snapshot "
+					+ file, e);
+			return null;
+		}
+		if (result != null) {
+			// for pruning, see write()
+			file.setLastModified(System.currentTimeMillis());
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a snapshot of the given policy (set) element for the policy with
+	 * the given hash to the given directory, replacing any previous snapshot
+	 * atomically. Failures are only logged: without a snapshot, the policy is
+	 * simply compiled from its XML the next time.
+	 */
+	static void write(File directory, byte[] hash, Element policy) {
+		File file = getFile(directory, hash);
+		File tmp = null;
+		try {
+			byte[] body = encode(policy);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					HEADER_SIZE + body.length);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.write(hash);
+			out.writeInt(body.length);
+			out.writeInt((int) crc.getValue());
+			out.write(body);
+			out.close();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			tmp = File.createTempFile("policy", ".tmp", directory);
+			Files.write(tmp.toPath(), bytes.toByteArray());
+			try {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			tmp = null;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not write policy snapshot "
+					+ file, e);
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+		prune(directory);
+	}
+
+	/**
+	 * Helper function to get the snapshot file for the given hash.
+	 */
+	private static File getFile(File directory, byte[] hash) {
+		return new File(directory, PolicyCache.toHex(hash) + SUFFIX);
+	}
+
+	/**
+	 * Helper function to delete the least recently used snapshots if there
+	 * are more than MAX_SNAPSHOTS.
+	 */
+	private static void prune(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files == null || files.length <= MAX_SNAPSHOTS) {
+			return;
+		}
+		// sort on a copy of the modification times, they can change while
+		// sorting
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(lastModified[a], lastModified[b]);
+			}
+		});
+		for (int i = 0; i < files.length - MAX_SNAPSHOTS; i++) {
+			files[order[i]].delete();
+		}
+	}
+
+	/***********************
+	 * ENCODING
+	 ***********************/
+
+	/**
+	 * Helper function to encode the body of a snapshot: the string table
+	 * followed by the nodes.
+	 */
+	private static byte[] encode(Element policy) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+		DataOutputStream nodes = new DataOutputStream(nodeBytes);
+		encode(policy, nodes, strings);
+		nodes.close();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				nodeBytes.size() * 2);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(strings.size());
+		for (String s : strings.keySet()) {
+			byte[] encoded = s.getBytes(UTF8);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+		}
+		nodeBytes.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Helper function to encode a node and its descendants.
+	 */
+	private static void encode(Node node, DataOutputStream out,
+			Map<String, Integer> strings) throws IOException {
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			out.writeByte(ELEMENT);
+			out.writeInt(index(node.getNamespaceURI(), strings));
+			out.writeInt(index(node.getNodeName(), strings));
+			NamedNodeMap attributes = node.getAttributes();
+			out.writeInt(attributes.getLength());
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Attr attribute = (Attr) attributes.item(i);
+				out.writeInt(index(attribute.getNamespaceURI(), strings));
+				out.writeInt(index(attribute.getName(), strings));
+				out.writeInt(index(attribute.getValue(), strings));
+			}
+			NodeList children = node.getChildNodes();
+			out.writeInt(children.getLength());
+			for (int i = 0; i < children.getLength(); i++) {
+				encode(children.item(i), out, strings);
+			}
+			break;
+		case Node.TEXT_NODE:
+			out.writeByte(TEXT);
+			out.writeInt(index(node.getNodeValue(), strings));
+			break;
+		case Node.CDATA_SECTION_NODE:
+			out.writeByte(CDATA);
+			out.writeInt(index(node.getNodeValue(), strings));
+			break;
+		case Node.COMMENT_NODE:
+			out.writeByte(COMMENT);
+			out.writeInt(index(node.getNodeValue(), strings));
+			break;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			out.writeByte(PROCESSING_INSTRUCTION);
+			out.writeInt(index(((ProcessingInstruction) node).getTarget(),
+					strings));
+			out.writeInt(index(((ProcessingInstruction) node).getData(),
+					strings));
+			break;
+		default:
+			throw new IOException("Cannot store node of type "
+					+ node.getNodeType() + " in a policy snapshot");
+		}
+	}
+
+	/**
+	 * Helper function to get the index of the given string in the string
+	 * table, adding it if needed. Null is encoded as -1.
+	 */
+	private static int index(String s, Map<String, Integer> strings) {
+		if (s == null) {
+			return -1;
+		}
+		Integer result = strings.get(s);
+		if (result == null) {
+			result = strings.size();
+			strings.put(s, result);
+		}
+		return result;
+	}
+
+	/***********************
+	 * DECODING
+	 ***********************/
+
+	/**
+	 * Helper function to check the header of a snapshot and decode its body.
+	 * Returns null if the header does not match.
+	 */
+	private static Element decode(ByteBuffer buffer, byte[] hash)
+			throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a policy snapshot");
+		}
+		int version = buffer.getInt();
+		if (version != FORMAT_VERSION) {
+			logger.info("Ignoring policy snapshot of format version "
+					+ version + ", expected " + FORMAT_VERSION);
+			return null;
+		}
+		byte[] storedHash = new byte[hash.length];
+		buffer.get(storedHash);
+		if (!Arrays.equals(storedHash, hash)) {
+			throw new IOException("The hash of the policy snapshot does not match");
+		}
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length != buffer.remaining()) {
+			throw new IOException("The policy snapshot is truncated");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		if ((int) crc.getValue() != checksum) {
+			throw new IOException("The checksum of the policy snapshot does not match");
+		}
+		// the strings
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() / 4) {
+			throw new IOException("Invalid string table size: " + count);
+		}
+		String[] strings = new String[count];
+		for (int i = 0; i < count; i++) {
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining()) {
+				throw new IOException("Invalid string size: " + size);
+			}
+			byte[] encoded = new byte[size];
+			buffer.get(encoded);
+			strings[i] = new String(encoded, UTF8);
+		}
+		// the nodes
+		Document document = getDOMImplementation().createDocument(null,
+				null, null);
+		if (buffer.get() != ELEMENT) {
+			throw new IOException("The root of the policy snapshot is not an element");
+		}
+		Element result = decodeElement(buffer, strings, document);
+		document.appendChild(result);
+		if (buffer.hasRemaining()) {
+			throw new IOException("Trailing data in the policy snapshot");
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to get the DOM implementation, looking it up the first
+	 * time.
+	 */
+	private static DOMImplementation getDOMImplementation() throws IOException {
+		DOMImplementation result = domImplementation;
+		if (result == null) {
+			try {
+				DocumentBuilderFactory factory = DocumentBuilderFactory
+						.newInstance();
+				factory.setNamespaceAware(true);
+				result = factory.newDocumentBuilder().getDOMImplementation();
+			} catch (ParserConfigurationException e) {
+				throw new IOException("Could not create a document", e);
+			}
+			domImplementation = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to decode an element and its descendants, after its
+	 * type.
+	 */
+	private static Element decodeElement(ByteBuffer buffer, String[] strings,
+			Document document) throws IOException {
+		Element result = document.createElementNS(
+				string(buffer, strings, true), string(buffer, strings, false));
+		int attributes = count(buffer);
+		for (int i = 0; i < attributes; i++) {
+			result.setAttributeNS(string(buffer, strings, true),
+					string(buffer, strings, false),
+					string(buffer, strings, false));
+		}
+		int children = count(buffer);
+		for (int i = 0; i < children; i++) {
+			byte type = buffer.get();
+			switch (type) {
+			case ELEMENT:
+				result.appendChild(decodeElement(buffer, strings, document));
+				break;
+			case TEXT:
+				result.appendChild(document.createTextNode(string(buffer,
+						strings, false)));
+				break;
+			case CDATA:
+				result.appendChild(document.createCDATASection(string(buffer,
+						strings, false)));
+				break;
+			case COMMENT:
+				result.appendChild(document.createComment(string(buffer,
+						strings, false)));
+				break;
+			case PROCESSING_INSTRUCTION:
+				result.appendChild(document.createProcessingInstruction(
+						string(buffer, strings, false),
+						string(buffer, strings, false)));
+				break;
+			default:
+				throw new IOException("Invalid node type in the policy snapshot: "
+						+ type);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to decode a count, which is at most the number of
+	 * bytes left.
+	 */
+	private static int count(ByteBuffer buffer) throws IOException {
+		int result = buffer.getInt();
+		if (result < 0 || result > buffer.remaining()) {
+			throw new IOException("Invalid count in the policy snapshot: "
+					+ result);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to decode a reference to the string table.
+	 */
+	private static String string(ByteBuffer buffer, String[] strings,
+			boolean nullable) throws IOException {
+		int index = buffer.getInt();
+		if (index == -1 && nullable) {
+			return null;
+		}
+		if (index < 0 || index >= strings.length) {
+			throw new IOException("Invalid string index in the policy snapshot: "
+					+ index);
+		}
+		return strings[index];
+	}
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2014 KU Leuven Research and Developement - iMinds - Distrinet
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ *    Administrative Contact: dnet-project-office@cs.kuleuven.be
+ *    Technical Contact: maarten.decat@cs.kuleuven.be
+ *    Author: maarten.decat@cs.kuleuven.be
+ ******************************************************************************/
+package puma.applicationpdp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import oasis.names.tc.xacml._2_0.context.schema.os.RequestType;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import puma.applicationpdp.pdp.ApplicationPDP;
+import puma.peputils.Action;
+import puma.peputils.Environment;
+import puma.peputils.Object;
+import puma.peputils.Subject;
+import puma.peputils.attributes.ObjectAttributeValue;
+import puma.peputils.attributes.SubjectAttributeValue;
+
+import com.sun.xacml.EvaluationCtx;
+import com.sun.xacml.ctx.CachedAttribute;
+import com.sun.xacml.ctx.ResponseCtx;
+import com.sun.xacml.ctx.Result;
+import com.sun.xacml.remote.RemotePolicyEvaluatorModule;
+
+/**
+ * Tests of the request path from the PEP to the PDP: the memory allocated
+ * per decision and sharing the request template between threads.
+ *
+ * @author Maarten Decat
+ *
+ */
+public class DecisionPathTest {
+
+	/**
+	 * The maximal number of bytes one decision may allocate on the request
+	 * path, from the attributes of the PEP to the response of the PDP. The
+	 * build fails above this budget.
+	 */
+	private static final long ALLOCATION_BUDGET = Long.getLong(
+			"puma.applicationpdp.test.allocationbudget", 32 * 1024L);
+
+	private static final int WARMUP_DECISIONS = 20000;
+
+	private static final int MEASURED_DECISIONS = 10000;
+
+	private ApplicationPEP pep;
+
+	private ApplicationPDP pdp;
+
+	@Before
+	public void setUp() {
+		pep = ApplicationPEP.getInstance();
+		InputStream policy = getClass().getResourceAsStream(
+				"/policies/local-application-policy.xml");
+		try {
+			pdp = new ApplicationPDP(policy, false, new NoRemotePolicies());
+		} finally {
+			IOUtils.closeQuietly(policy);
+		}
+		assertTrue(pdp.isOperational());
+	}
+
+	@After
+	public void tearDown() {
+		pdp.close();
+	}
+
+	@Test
+	public void allocationPerDecisionIsWithinBudget() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Subject subject = subject("1");
+		Object object = object("1");
+		Action action = new Action("read");
+		Environment environment = new Environment();
+		// let the JIT settle first, escape analysis removes allocations
+		for (int i = 0; i < WARMUP_DECISIONS; i++) {
+			decide(subject, object, action, environment);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_DECISIONS; i++) {
+			decide(subject, object, action, environment);
+		}
+		long perDecision = (threads.getThreadAllocatedBytes(threadId) - before)
+				/ MEASURED_DECISIONS;
+		assertTrue("One decision allocated " + perDecision
+				+ " bytes, the budget is " + ALLOCATION_BUDGET + " bytes",
+				perDecision <= ALLOCATION_BUDGET);
+	}
+
+	/**
+	 * The request template is one JAXB object graph shared by all threads. It
+	 * is only read during evaluation, which is safe once its lazily created
+	 * lists all exist, see ApplicationPEP.buildRequestTemplate().
+	 */
+	@Test
+	public void requestTemplateCanBeSharedAcrossThreads() throws Exception {
+		final Subject subject = subject("1");
+		final Action action = new Action("read");
+		final Environment environment = new Environment();
+		final Object ownObject = object("1");
+		final Object otherObject = object("2");
+		final int expectedOwn = decide(subject, ownObject, action, environment);
+		final int expectedOther = decide(subject, otherObject, action,
+				environment);
+		assertEquals(Result.DECISION_DENY, expectedOther);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for (int i = 0; i < 2000; i++) {
+							if (decide(subject, ownObject, action, environment) != expectedOwn
+									|| decide(subject, otherObject, action,
+											environment) != expectedOther) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures) {
+				assertTrue(future.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Helper function to take a decision like the PEP does, without the
+	 * decision cache.
+	 */
+	private int decide(Subject subject, Object object, Action action,
+			Environment environment) {
+		List<CachedAttribute> attributes = pep.asCachedAttributes(subject,
+				object, action, environment);
+		RequestType request = pep.asRequest(subject, object, action);
+		ResponseCtx response = pdp.evaluate(request, attributes);
+		return ((Result) response.getResults().iterator().next())
+				.getDecision();
+	}
+
+	private static Subject subject(String tenant) {
+		Subject subject = new Subject("maarten");
+		subject.addAttributeValue(new SubjectAttributeValue("roles", "phd"));
+		subject.addAttributeValue(new SubjectAttributeValue("tenant", tenant));
+		return subject;
+	}
+
+	private static Object object(String owningTenant) {
+		Object object = new Object("123");
+		object.addAttributeValue(new ObjectAttributeValue("type", "document"));
+		object.addAttributeValue(new ObjectAttributeValue("owning-tenant",
+				owningTenant));
+		return object;
+	}
+
+	/**
+	 * The test policy does not refer to the central PUMA policy.
+	 */
+	private static class NoRemotePolicies extends RemotePolicyEvaluatorModule {
+
+		@Override
+		public boolean isRequestSupported() {
+			return false;
+		}
+
+		@Override
+		public boolean isIdReferenceSupported() {
+			return false;
+		}
+
+		@Override
+		public boolean supportsId(URI id) {
+			return false;
+		}
+
+		@Override
+		public Result findAndEvaluate(EvaluationCtx context) {
+			return new Result(Result.DECISION_NOT_APPLICABLE);
+		}
+
+		@Override
+		public Result findAndEvaluate(URI id, EvaluationCtx context) {
+			return new Result(Result.DECISION_NOT_APPLICABLE);
+		}
+	}
+}